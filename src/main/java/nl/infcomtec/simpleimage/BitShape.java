@@ -1,6 +1,7 @@
 package nl.infcomtec.simpleimage;
 
 import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.geom.Point2D;
 import java.util.BitSet;
 import java.util.Iterator;
@@ -11,7 +12,7 @@ import java.util.NoSuchElementException;
  *
  * @author Walter Stroebel
  */
-public class BitShape implements Iterable<Point> {
+public class BitShape implements PixelShape {
 
     private final BitSet bs = new BitSet();
     private final int W;
@@ -20,6 +21,13 @@ public class BitShape implements Iterable<Point> {
         this.W = W;
     }
 
+    /**
+     * @return The width the points are indexed with.
+     */
+    public final int getWidth() {
+        return W;
+    }
+
     /**
      * @param p The point, java.awt.Point is also a Point2D.
      * @return true if p is inside the shape.
@@ -59,6 +67,17 @@ public class BitShape implements Iterable<Point> {
         bs.set(y * W + x);
     }
 
+    /**
+     * Add a horizontal run of points at once.
+     *
+     * @param x0 First x.
+     * @param x1 Last x plus one.
+     * @param y
+     */
+    public final void setSpan(int x0, int x1, int y) {
+        bs.set(y * W + x0, y * W + x1);
+    }
+
     /**
      * Remove a point.
      *
@@ -100,6 +119,42 @@ public class BitShape implements Iterable<Point> {
         reset(p);
     }
 
+    @Override
+    public Rectangle getBounds() {
+        final Rectangle ret = new Rectangle();
+        final boolean[] first = {true};
+        forEachSpan(new SpanVisitor() {
+            @Override
+            public void span(int y, int x0, int x1) {
+                if (first[0]) {
+                    ret.setBounds(x0, y, x1 - x0, 1);
+                    first[0] = false;
+                } else {
+                    ret.add(new Rectangle(x0, y, x1 - x0, 1));
+                }
+            }
+        });
+        return ret;
+    }
+
+    @Override
+    public void forEachSpan(SpanVisitor visitor) {
+        forEachSpan(0, Integer.MAX_VALUE / W, visitor);
+    }
+
+    @Override
+    public void forEachSpan(int y0, int y1, SpanVisitor visitor) {
+        long end = Math.min((long) y1 * W, bs.length());
+        int i = bs.nextSetBit(Math.max(0, y0) * W);
+        while (i >= 0 && i < end) {
+            int y = i / W;
+            // a run stops at a clear bit or at the end of the row
+            int stop = Math.min(bs.nextClearBit(i), (y + 1) * W);
+            visitor.span(y, i - y * W, stop - y * W);
+            i = bs.nextSetBit(stop);
+        }
+    }
+
     @Override
     public Iterator<Point> iterator() {
         return new Iterator<Point>() {
@@ -3,29 +3,74 @@ package nl.infcomtec.simpleimage;
 import java.awt.Color;
 import java.awt.Font;
 import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
 import javax.swing.UIManager;
 
 /**
  * Collection of actions one can do to an ImageObject.
+ * <p>
+ * Besides single pixels there are bulk operations on int arrays of ARGB
+ * pixels. These work on whole rows, in parallel bands on the
+ * ImageScheduler, and remember the region they changed like the other
+ * actions.
+ * </p><p>
+ * Actions do not alter the image that is shown. The first one after
+ * callObserversIfChanged() works on a copy, which that method then publishes
+ * as the new snapshot. So batch actions before calling it, each call copies
+ * the image once.
+ * </p>
  *
  * @author walter
  */
 public class ImageActions {
 
+    /**
+     * Rows per parallel task.
+     */
+    private static final int ROWS = 64;
+
     private final ImageObject io;
-    private boolean changed = false;
+    /**
+     * What was changed since the last callObserversIfChanged(), or null.
+     */
+    private Rectangle dirty = null;
+    /**
+     * The copy being edited and the snapshot it was copied from, or null.
+     */
+    private BufferedImage draft = null;
+    private ImageObject.Snapshot base = null;
 
     public ImageActions(ImageObject io) {
         this.io = io;
     }
 
+    /**
+     * @return The image to read, includes changes not published yet.
+     */
+    private synchronized BufferedImage source() {
+        return null == draft ? io.getImage() : draft;
+    }
+
+    /**
+     * @return The copy to alter, made when first needed.
+     */
+    private synchronized BufferedImage target() {
+        if (null == draft) {
+            base = io.getSnapshot();
+            draft = MappedImage.copy(base.image);
+        }
+        return draft;
+    }
+
     public int getPixel(int x, int y) {
-        return io.getImage().getRGB(x, y);
+        return source().getRGB(x, y);
     }
 
     public synchronized void setPixel(int x, int y, int rgb) {
-        io.getImage().setRGB(x, y, rgb);
-        changed = true;
+        target().setRGB(x, y, rgb);
+        changed(new Rectangle(x, y, 1, 1));
     }
 
     public Color getColor(int x, int y) {
@@ -41,12 +86,15 @@ public class ImageActions {
      * @param str String to draw.
      */
     public synchronized void drawString(Font font, int x, int y, String str) {
-        Graphics gr = io.getGraphics();
-        Font oldFont = gr.getFont();
+        Graphics gr = target().getGraphics();
         gr.setFont(font);
         gr.drawString(str, x, y);
-        gr.setFont(oldFont);
-        changed = true;
+        Rectangle r = gr.getFontMetrics().getStringBounds(str, gr).getBounds();
+        gr.dispose();
+        // glyphs can stick out of their advance a little
+        r.translate(x, y);
+        r.grow(2, 2);
+        changed(r);
     }
 
     /**
@@ -60,20 +108,308 @@ public class ImageActions {
         drawString(UIManager.getFont("Label.font"), x, y, str);
     }
 
-    public void setColor(int x, int y, Color color) {
-        io.getImage().setRGB(x, y, color.getRGB());
-        changed = true;
+    public synchronized void setColor(int x, int y, Color color) {
+        target().setRGB(x, y, color.getRGB());
+        changed(new Rectangle(x, y, 1, 1));
+    }
+
+    /**
+     * Read a region of the image.
+     *
+     * @param r The region, must be inside the image.
+     * @param into Receives the ARGB pixels row by row, null for a new array.
+     * @return into or the new array.
+     */
+    public int[] getPixels(Rectangle r, int[] into) {
+        BufferedImage img = source();
+        inside(img, r);
+        if (null == into) {
+            into = new int[r.width * r.height];
+        }
+        read(img, r.x, r.y, r.width, r.height, into, 0);
+        return into;
+    }
+
+    /**
+     * Write a region of the image.
+     *
+     * @param r The region, must be inside the image.
+     * @param pixels The ARGB pixels row by row.
+     */
+    public synchronized void setPixels(final Rectangle r, final int[] pixels) {
+        inside(source(), r);
+        final BufferedImage img = target();
+        ImageScheduler.forRows(r.height, ROWS, new ImageScheduler.Rows() {
+            @Override
+            public void rows(int y0, int y1) {
+                write(img, r.x, r.y + y0, r.width, y1 - y0, pixels, y0 * r.width);
+            }
+        });
+        changed(new Rectangle(r));
+    }
+
+    /**
+     * Fill a rectangle with a color, the color replaces what was there.
+     *
+     * @param r The rectangle, clipped to the image.
+     * @param argb The color.
+     */
+    public synchronized void fill(Rectangle r, final int argb) {
+        final Rectangle c = clip(source(), r);
+        if (c.isEmpty()) {
+            return;
+        }
+        final BufferedImage img = target();
+        ImageScheduler.forRows(c.height, ROWS, new ImageScheduler.Rows() {
+            @Override
+            public void rows(int y0, int y1) {
+                int[] row = new int[c.width];
+                Arrays.fill(row, argb);
+                for (int y = y0; y < y1; y++) {
+                    write(img, c.x, c.y + y, c.width, 1, row, 0);
+                }
+            }
+        });
+        changed(c);
+    }
+
+    /**
+     * Copy part of another image into this one, replacing the pixels.
+     *
+     * @param src The source image.
+     * @param from The part of src to copy.
+     * @param x Left of the destination.
+     * @param y Top of the destination.
+     */
+    public void copy(BufferedImage src, Rectangle from, int x, int y) {
+        combine(src, from, x, y, false);
+    }
+
+    /**
+     * Draw an image over this one, blending by its alpha.
+     *
+     * @param src The image to draw.
+     * @param x Left of the destination.
+     * @param y Top of the destination.
+     */
+    public void blit(BufferedImage src, int x, int y) {
+        combine(src, new Rectangle(src.getWidth(), src.getHeight()), x, y, true);
+    }
+
+    /**
+     * Copy or blend, clipped to both images.
+     */
+    private synchronized void combine(final BufferedImage src, Rectangle from, int x, int y, final boolean blend) {
+        Rectangle s = clip(src, from);
+        // the destination of s, clipped to the image
+        final Rectangle d = clip(source(), new Rectangle(x + s.x - from.x, y + s.y - from.y, s.width, s.height));
+        if (d.isEmpty()) {
+            return;
+        }
+        final BufferedImage img = target();
+        final int sx = s.x + d.x - (x + s.x - from.x);
+        final int sy = s.y + d.y - (y + s.y - from.y);
+        ImageScheduler.forRows(d.height, ROWS, new ImageScheduler.Rows() {
+            @Override
+            public void rows(int y0, int y1) {
+                int[] in = new int[d.width];
+                int[] out = new int[d.width];
+                for (int row = y0; row < y1; row++) {
+                    read(src, sx, sy + row, d.width, 1, in, 0);
+                    if (blend) {
+                        read(img, d.x, d.y + row, d.width, 1, out, 0);
+                        for (int i = 0; i < in.length; i++) {
+                            out[i] = over(in[i], out[i]);
+                        }
+                        write(img, d.x, d.y + row, d.width, 1, out, 0);
+                    } else {
+                        write(img, d.x, d.y + row, d.width, 1, in, 0);
+                    }
+                }
+            }
+        });
+        changed(d);
+    }
+
+    /**
+     * Source over destination for non premultiplied ARGB.
+     */
+    private static int over(int s, int d) {
+        int sa = s >>> 24;
+        if (sa == 255) {
+            return s;
+        }
+        if (sa == 0) {
+            return d;
+        }
+        // weights scaled by 255 * 255
+        int ws = sa * 255;
+        int wd = (d >>> 24) * (255 - sa);
+        int wa = ws + wd;
+        int r = (((s >> 16) & 0xFF) * ws + ((d >> 16) & 0xFF) * wd) / wa;
+        int g = (((s >> 8) & 0xFF) * ws + ((d >> 8) & 0xFF) * wd) / wa;
+        int b = ((s & 0xFF) * ws + (d & 0xFF) * wd) / wa;
+        return (((wa + 127) / 255) << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    /**
+     * Convolve a region with a square kernel, for instance to blur or
+     * sharpen. The color channels are filtered, alpha is kept. Pixels outside
+     * the image are taken from the nearest edge.
+     *
+     * @param r The region, clipped to the image.
+     * @param kernel 3x3 or 5x5 weights, row by row.
+     */
+    public synchronized void convolve(Rectangle r, final float[] kernel) {
+        final int size = (int) Math.round(Math.sqrt(kernel.length));
+        if (size * size != kernel.length || (size & 1) == 0) {
+            throw new IllegalArgumentException("Kernel must be square with an odd size, not " + kernel.length);
+        }
+        final Rectangle c = clip(source(), r);
+        if (c.isEmpty()) {
+            return;
+        }
+        final BufferedImage img = target();
+        final int rad = size / 2;
+        // read the region plus a border first, the bands overwrite it
+        final Rectangle b = clip(img, new Rectangle(c.x - rad, c.y - rad, c.width + 2 * rad, c.height + 2 * rad));
+        final int[] in = new int[b.width * b.height];
+        read(img, b.x, b.y, b.width, b.height, in, 0);
+        ImageScheduler.forRows(c.height, ROWS, new ImageScheduler.Rows() {
+            @Override
+            public void rows(int y0, int y1) {
+                int[] out = new int[c.width];
+                // index in a row of in for x - rad, clamped at the edges
+                int[] cols = new int[c.width + 2 * rad];
+                for (int i = 0; i < cols.length; i++) {
+                    cols[i] = Math.min(Math.max(c.x - rad + i, b.x), b.x + b.width - 1) - b.x;
+                }
+                int[] rows = new int[size];
+                for (int y = c.y + y0; y < c.y + y1; y++) {
+                    for (int ky = 0; ky < size; ky++) {
+                        rows[ky] = (Math.min(Math.max(y - rad + ky, b.y), b.y + b.height - 1) - b.y) * b.width;
+                    }
+                    for (int i = 0; i < c.width; i++) {
+                        float sr = 0;
+                        float sg = 0;
+                        float sb = 0;
+                        int k = 0;
+                        for (int ky = 0; ky < size; ky++) {
+                            int row = rows[ky];
+                            for (int kx = 0; kx < size; kx++) {
+                                int p = in[row + cols[i + kx]];
+                                float w = kernel[k++];
+                                sr += ((p >> 16) & 0xFF) * w;
+                                sg += ((p >> 8) & 0xFF) * w;
+                                sb += (p & 0xFF) * w;
+                            }
+                        }
+                        int a = in[rows[rad] + cols[i + rad]] & 0xFF000000;
+                        out[i] = a | (channel(sr) << 16) | (channel(sg) << 8) | channel(sb);
+                    }
+                    write(img, c.x, y, c.width, 1, out, 0);
+                }
+            }
+        });
+        changed(c);
+    }
+
+    private static int channel(float v) {
+        return v <= 0 ? 0 : v >= 255 ? 255 : (int) (v + 0.5f);
+    }
+
+    /**
+     * Make a region two colored by brightness.
+     *
+     * @param r The region, clipped to the image.
+     * @param level Brightness 0-255, pixels below it become below, the others
+     * above.
+     * @param below ARGB color for dark pixels.
+     * @param above ARGB color for light pixels.
+     */
+    public synchronized void threshold(Rectangle r, final int level, final int below, final int above) {
+        final Rectangle c = clip(source(), r);
+        if (c.isEmpty()) {
+            return;
+        }
+        final BufferedImage img = target();
+        ImageScheduler.forRows(c.height, ROWS, new ImageScheduler.Rows() {
+            @Override
+            public void rows(int y0, int y1) {
+                int[] row = new int[c.width];
+                for (int y = c.y + y0; y < c.y + y1; y++) {
+                    read(img, c.x, y, c.width, 1, row, 0);
+                    for (int i = 0; i < row.length; i++) {
+                        int p = row[i];
+                        int lum = (((p >> 16) & 0xFF) * 77 + ((p >> 8) & 0xFF) * 150 + (p & 0xFF) * 29) >> 8;
+                        row[i] = lum < level ? below : above;
+                    }
+                    write(img, c.x, y, c.width, 1, row, 0);
+                }
+            }
+        });
+        changed(c);
+    }
+
+    private static Rectangle clip(BufferedImage img, Rectangle r) {
+        return r.intersection(new Rectangle(img.getWidth(), img.getHeight()));
+    }
+
+    private static void inside(BufferedImage img, Rectangle r) {
+        if (!new Rectangle(img.getWidth(), img.getHeight()).contains(r)) {
+            throw new IllegalArgumentException("Region " + r + " is not inside the image");
+        }
+    }
+
+    /**
+     * True if the raster holds ARGB ints, so the pixels can be moved without
+     * color conversion.
+     */
+    private static boolean isArgb(BufferedImage img) {
+        return img.getType() == BufferedImage.TYPE_INT_ARGB || MappedImage.isOffHeap(img);
+    }
+
+    private static void read(BufferedImage img, int x, int y, int w, int h, int[] buf, int offset) {
+        if (isArgb(img)) {
+            MappedImage.getPixels(img, x, y, w, h, buf, offset);
+        } else {
+            img.getRGB(x, y, w, h, buf, offset, w);
+        }
+    }
+
+    private static void write(BufferedImage img, int x, int y, int w, int h, int[] buf, int offset) {
+        if (isArgb(img)) {
+            MappedImage.setPixels(img, x, y, w, h, buf, offset);
+        } else {
+            img.setRGB(x, y, w, h, buf, offset, w);
+        }
+    }
+
+    /**
+     * Remember that a region was changed.
+     *
+     * @param r The region.
+     */
+    protected synchronized void changed(Rectangle r) {
+        if (null == dirty) {
+            dirty = r;
+        } else {
+            dirty.add(r);
+        }
     }
 
     /**
-     * If any actions changed the image, signal any observers.
+     * If any actions changed the image, publish the changed copy and signal
+     * any observers about the region that was changed.
      *
      * This will reset the changed state.
      */
     public synchronized void callObserversIfChanged() {
-        if (changed) {
-            io.putImage(null);
+        if (null != dirty && null != draft) {
+            io.putRegion(base, draft, dirty);
         }
-        changed = false;
+        dirty = null;
+        draft = null;
+        base = null;
     }
 }
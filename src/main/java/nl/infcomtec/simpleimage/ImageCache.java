@@ -0,0 +1,245 @@
+package nl.infcomtec.simpleimage;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The one cache of decoded image files in this process.
+ * <p>
+ * Viewers, thumbnails and frames that show the same file share one
+ * ImageObject, and with it the mipmaps. Files are known by path, time of last
+ * modification and size, so a changed file is decoded again. Heap images
+ * count against a budget, a quarter of the maximum heap by default or the
+ * system property simpleimage.cacheMB. Over budget the least recently used
+ * images are dropped to soft references, the garbage collector decides when
+ * they are really gone. Images that are on screen are pinned and never
+ * dropped. An image that is changed no longer matches its file, it is
+ * forgotten and the next get() decodes the file again.
+ * </p>
+ *
+ * @author Walter Stroebel
+ */
+public final class ImageCache {
+
+    /**
+     * Identifies a version of a file.
+     */
+    private static final class Key {
+
+        final String path;
+        final long modified;
+        final long size;
+
+        Key(File f) {
+            this.path = f.getAbsolutePath();
+            this.modified = f.lastModified();
+            this.size = f.length();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return k.modified == modified && k.size == size && k.path.equals(path);
+        }
+
+        @Override
+        public int hashCode() {
+            return (path.hashCode() * 31 + Long.hashCode(modified)) * 31 + Long.hashCode(size);
+        }
+    }
+
+    /**
+     * A cached image, pins counts the viewers that show it.
+     */
+    private static final class Entry {
+
+        final Key key;
+        final ImageObject image;
+        final long bytes;
+        int pins;
+
+        Entry(Key key, ImageObject image) {
+            this.key = key;
+            this.image = image;
+            // off-heap pixels do not use the heap
+            this.bytes = image.isOffHeap() ? 0 : 4L * image.getWidth() * image.getHeight();
+        }
+    }
+
+    private static long budget = Long.getLong("simpleimage.cacheMB",
+            Runtime.getRuntime().maxMemory() / 4 / (1024 * 1024)) * 1024 * 1024;
+    private static long used = 0;
+    /**
+     * In least recently used order.
+     */
+    private static final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private static final IdentityHashMap<ImageObject, Entry> byImage = new IdentityHashMap<>();
+    /**
+     * Images dropped for the budget, still usable until collected.
+     */
+    private static final HashMap<Key, SoftReference<ImageObject>> dropped = new HashMap<>();
+
+    private ImageCache() {
+    }
+
+    /**
+     * Get a decoded image file, from the cache if possible.
+     *
+     * @param f The file.
+     * @return The image, shared with everybody else who asked for f.
+     * @throws IOException If the file cannot be decoded.
+     */
+    public static ImageObject get(File f) throws IOException {
+        Key key = new Key(f);
+        synchronized (ImageCache.class) {
+            Entry e = entries.get(key);
+            if (null != e) {
+                return e.image;
+            }
+            SoftReference<ImageObject> ref = dropped.remove(key);
+            if (null != ref && null != ref.get()) {
+                return add(new Entry(key, ref.get()));
+            }
+        }
+        // decode without holding the lock, others may use the cache meanwhile
+        BufferedImage img = MappedImage.read(f);
+        ImageObject io = MappedImage.isOffHeap(img) ? new ImageObject(img, false) : new ImageObject(img);
+        synchronized (ImageCache.class) {
+            Entry e = entries.get(key);
+            if (null != e) {
+                // decoded by another thread at the same time
+                return e.image;
+            }
+            return add(new Entry(key, io));
+        }
+    }
+
+    private static ImageObject add(Entry e) {
+        e.image.cached = true;
+        entries.put(e.key, e);
+        byImage.put(e.image, e);
+        used += e.bytes;
+        trim();
+        return e.image;
+    }
+
+    /**
+     * Drop the least recently used images that are not pinned until the
+     * budget is met.
+     */
+    private static void trim() {
+        Iterator<Entry> it = entries.values().iterator();
+        while (used > budget && it.hasNext()) {
+            Entry e = it.next();
+            if (e.pins == 0) {
+                it.remove();
+                byImage.remove(e.image);
+                used -= e.bytes;
+                dropped.put(e.key, new SoftReference<>(e.image));
+            }
+        }
+        // forget the references the collector has cleared
+        Iterator<SoftReference<ImageObject>> refs = dropped.values().iterator();
+        while (refs.hasNext()) {
+            if (null == refs.next().get()) {
+                refs.remove();
+            }
+        }
+    }
+
+    /**
+     * Called when a cached image is changed, its users keep it but it is no
+     * longer handed out or counted.
+     *
+     * @param image The image.
+     */
+    static synchronized void forget(ImageObject image) {
+        image.cached = false;
+        Entry e = byImage.remove(image);
+        if (null != e) {
+            entries.remove(e.key);
+            used -= e.bytes;
+        }
+        Iterator<SoftReference<ImageObject>> refs = dropped.values().iterator();
+        while (refs.hasNext()) {
+            if (refs.next().get() == image) {
+                refs.remove();
+            }
+        }
+    }
+
+    /**
+     * Keep an image in the cache while it is shown. Does nothing for images
+     * that did not come from the cache.
+     *
+     * @param image The image.
+     */
+    public static synchronized void pin(ImageObject image) {
+        Entry e = byImage.get(image);
+        if (null != e) {
+            e.pins++;
+        }
+    }
+
+    /**
+     * Undo one pin().
+     *
+     * @param image The image.
+     */
+    public static synchronized void unpin(ImageObject image) {
+        Entry e = byImage.get(image);
+        if (null != e && e.pins > 0) {
+            e.pins--;
+            trim();
+        }
+    }
+
+    /**
+     * @return The budget for heap images in bytes.
+     */
+    public static synchronized long getBudget() {
+        return budget;
+    }
+
+    /**
+     * @param bytes The budget for heap images, pinned images can exceed it.
+     */
+    public static synchronized void setBudget(long bytes) {
+        budget = bytes;
+        trim();
+    }
+
+    /**
+     * @return Bytes of heap images in the cache.
+     */
+    public static synchronized long getUsed() {
+        return used;
+    }
+
+    /**
+     * Drop all images that are not pinned.
+     */
+    public static synchronized void clear() {
+        Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Entry e = it.next().getValue();
+            if (e.pins == 0) {
+                it.remove();
+                byImage.remove(e.image);
+                used -= e.bytes;
+                e.image.cached = false;
+            }
+        }
+        dropped.clear();
+    }
+}
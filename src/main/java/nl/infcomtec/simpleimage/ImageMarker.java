@@ -6,14 +6,20 @@ import java.awt.EventQueue;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Image;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseWheelEvent;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.NoninvertibleTransformException;
 import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import javax.swing.JFrame;
@@ -28,6 +34,10 @@ import javax.swing.SwingUtilities;
 public class ImageMarker extends ImageViewer {
 
     private final List<LabelledPoint> markers = new LinkedList<>();
+    /**
+     * Grid over the markers, for picking and for drawing only visible ones.
+     */
+    private final PointIndex index = new PointIndex();
 
     public ImageMarker(Image image) {
         super(image);
@@ -37,6 +47,45 @@ public class ImageMarker extends ImageViewer {
         super(f);
     }
 
+    /**
+     * Add a labelled point.
+     *
+     * @param p The point, it can be dragged by the user.
+     */
+    public synchronized void addPoint(LabelledPoint p) {
+        markers.add(p);
+        index.add(p);
+        imgObj.sendSignal(null);
+    }
+
+    /**
+     * Remove a labelled point.
+     *
+     * @param p The point.
+     * @return true if it was there.
+     */
+    public synchronized boolean removePoint(LabelledPoint p) {
+        if (!index.remove(p)) {
+            return false;
+        }
+        // by identity, equal points may be different labels
+        for (Iterator<LabelledPoint> it = markers.iterator(); it.hasNext();) {
+            if (it.next() == p) {
+                it.remove();
+                break;
+            }
+        }
+        imgObj.sendSignal(null);
+        return true;
+    }
+
+    /**
+     * @return A copy of the list of labelled points.
+     */
+    public synchronized List<LabelledPoint> getPoints() {
+        return new ArrayList<>(markers);
+    }
+
     /**
      * Show the image in a JPanel component with simple pan(drag) and zoom(mouse
      * wheel).
@@ -83,16 +132,20 @@ public class ImageMarker extends ImageViewer {
             updateTrans();
             MouseAdapter ma = new MouseAdapter() {
                 private int lastX, lastY;
+                /**
+                 * Where the dragged marker and the mouse were at the start,
+                 * in image pixels.
+                 */
+                private Point start;
+                private Point2D startMouse;
 
                 @Override
                 public void mousePressed(MouseEvent e) {
                     Point2D mouse = inverseTransform.transform(e.getPoint(), null);
-                    lp = null;
-                    for (LabelledPoint mark : markers) {
-                        if (mark.selects(mouse)) {
-                            lp = mark;
-                            break;
-                        }
+                    lp = index.pick(mouse, LabelledPoint.RADIUS);
+                    if (null != lp) {
+                        start = new Point(lp);
+                        startMouse = mouse;
                     }
                     lastX = e.getX();
                     lastY = e.getY();
@@ -112,14 +165,20 @@ public class ImageMarker extends ImageViewer {
                     if (null == lp) {
                         ofsX += e.getX() - lastX;
                         ofsY += e.getY() - lastY;
+                        updateTrans();
+                        repaint(); // Repaint the panel to reflect the new position
                     } else {
-                        lp.x += e.getX() - lastX;
-                        lp.y += e.getY() - lastY;
+                        // only the area around the old and the new position
+                        Rectangle dirty = markBounds(lp);
+                        Point2D mouse = inverseTransform.transform(e.getPoint(), null);
+                        lp.setLocation(start.x + (int) Math.round(mouse.getX() - startMouse.getX()),
+                                start.y + (int) Math.round(mouse.getY() - startMouse.getY()));
+                        index.update(lp);
+                        dirty.add(markBounds(lp));
+                        repaint(dirty);
                     }
                     lastX = e.getX();
                     lastY = e.getY();
-                    updateTrans();
-                    repaint(); // Repaint the panel to reflect the new position
                 }
 
                 @Override
@@ -140,8 +199,21 @@ public class ImageMarker extends ImageViewer {
                 @Override
                 public void imageChanged(ImageObject imgObj, double resizeHint) {
                     scale *= resizeHint;
+                    updateTrans();
                     repaint(); // Repaint the panel to reflect any changes
                 }
+
+                @Override
+                public void regionChanged(ImageObject imgObj, Rectangle region) {
+                    Rectangle r = transform.createTransformedShape(region).getBounds();
+                    r.grow(2, 2);
+                    repaint(r);
+                }
+
+                @Override
+                public void signal(Object any) {
+                    repaint();
+                }
             });
         }
 
@@ -157,19 +229,57 @@ public class ImageMarker extends ImageViewer {
             }
         }
 
+        /**
+         * @param mark A marker.
+         * @return The area the marker covers on the panel, with a small margin.
+         */
+        private Rectangle markBounds(LabelledPoint mark) {
+            Rectangle r = transform.createTransformedShape(mark.getShape()).getBounds();
+            r.grow(2, 2);
+            return r;
+        }
+
         @Override
         public void paint(Graphics g) {
-            Graphics2D g2 = (Graphics2D) g;
+            Graphics2D g2 = (Graphics2D) g.create();
+            Rectangle clip = g2.getClipBounds();
+            if (null == clip) {
+                clip = new Rectangle(getWidth(), getHeight());
+            }
             g2.setColor(Color.DARK_GRAY);
-            g2.fillRect(0, 0, getWidth(), getHeight());
-            int scaledWidth = (int) (imgObj.getWidth() * scale);
-            int scaledHeight = (int) (imgObj.getHeight() * scale);
-            g2.drawImage(imgObj.getScaledInstance(scaledWidth, scaledHeight, BufferedImage.SCALE_FAST), ofsX, ofsY, null);
+            g2.fillRect(clip.x, clip.y, clip.width, clip.height);
+            g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            // the transform does the scaling, Java2D only draws what is in the clip
+            ImageObject.Snapshot snap = imgObj.getSnapshot();
+            BufferedImage src = snap.getMipmapFor(scale);
+            AffineTransform at = new AffineTransform(transform);
+            at.scale((double) snap.image.getWidth() / src.getWidth(), (double) snap.image.getHeight() / src.getHeight());
+            if (MappedImage.isOffHeap(src)) {
+                // Java2D would copy the whole image, copy just what is visible
+                try {
+                    Rectangle r = at.createInverse().createTransformedShape(clip).getBounds();
+                    r.grow(2, 2);
+                    r = r.intersection(new Rectangle(src.getWidth(), src.getHeight()));
+                    if (!r.isEmpty()) {
+                        at.translate(r.x, r.y);
+                        g2.drawImage(MappedImage.getTile(src, r), at, null);
+                    }
+                } catch (NoninvertibleTransformException ex) {
+                    // cannot happen, scale is never 0
+                }
+            } else {
+                g2.drawImage(src, at, null);
+            }
             g2.setColor(Color.BLACK);
             g2.setXORMode(Color.WHITE);
-            for (LabelledPoint mark : markers) {
+            // only the markers whose circle can be in the clip
+            Rectangle2D visible = inverseTransform.createTransformedShape(clip).getBounds2D();
+            visible.setRect(visible.getX() - LabelledPoint.RADIUS, visible.getY() - LabelledPoint.RADIUS,
+                    visible.getWidth() + 2 * LabelledPoint.RADIUS, visible.getHeight() + 2 * LabelledPoint.RADIUS);
+            for (LabelledPoint mark : index.query(visible, new ArrayList<LabelledPoint>())) {
                 g2.draw(transform.createTransformedShape(mark.getShape()));
             }
+            g2.dispose();
         }
     }
 }
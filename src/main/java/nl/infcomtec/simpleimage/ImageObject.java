@@ -1,42 +1,137 @@
 package nl.infcomtec.simpleimage;
 
+import java.awt.EventQueue;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Image;
+import java.awt.Rectangle;
 import java.awt.geom.Point2D;
 import java.awt.image.BufferedImage;
 import java.awt.image.ImageObserver;
 import java.awt.image.ImageProducer;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Thread safe wrapper around BufferedImage.
+ * <p>
+ * The image is published as an immutable Snapshot: readers take the current
+ * one without locking and see an image, its mipmaps and a version that
+ * belong together. Writers replace the snapshot atomically, with new buffers
+ * for whatever changed, the buffers of a published snapshot are never
+ * altered. Listeners are
+ * told about changes on the event dispatch thread, a burst of changes results
+ * in a single imageChanged() call.
+ * </p>
  *
  * @author Walter Stroebel
  */
 public class ImageObject extends Image {
 
-    private BufferedImage image;
-    private final Semaphore lock = new Semaphore(0);
-    private final List<ImageObjectListener> listeners = new LinkedList<>();
+    private final AtomicReference<Snapshot> current = new AtomicReference<>();
+    private final List<ImageObjectListener> listeners = new CopyOnWriteArrayList<>();
+    /**
+     * Guards the pending notification.
+     */
+    private final Object pendingLock = new Object();
+    private boolean pending = false;
+    /**
+     * Width of the image when the listeners were last told about it.
+     */
+    private int pendingWidth;
+    /**
+     * Union of the changed regions, unless pendingAll.
+     */
+    private Rectangle pendingRegion;
+    private boolean pendingAll;
+    /**
+     * Set while ImageCache hands this out as the decoded file.
+     */
+    volatile boolean cached;
     public boolean debug = false;
 
     public ImageObject(Image image) {
         putImage(image);
     }
 
+    /**
+     * Use an image as is, for instance an off-heap MappedImage.
+     *
+     * @param image The image, should be ARGB. Copied if copy is true.
+     * @param copy If false the image is not copied to the heap.
+     */
+    public ImageObject(BufferedImage image, boolean copy) {
+        putImage(image, copy);
+    }
+
+    /**
+     * @return true if the image is not stored on the Java heap.
+     */
+    public boolean isOffHeap() {
+        return MappedImage.isOffHeap(getImage());
+    }
+
+    /**
+     * Copy part of the image, this is the efficient way to read off-heap
+     * images.
+     *
+     * @param r The part to copy.
+     * @return A heap image of the part.
+     */
+    public BufferedImage getTile(Rectangle r) {
+        return MappedImage.getTile(getImage(), r);
+    }
+
     /**
      * @return The most recent image.
      */
     public BufferedImage getImage() {
-        return image;
+        return current.get().image;
+    }
+
+    /**
+     * Use this when reading more than one thing, the image can be replaced
+     * between two calls to getImage().
+     *
+     * @return The most recent snapshot.
+     */
+    public Snapshot getSnapshot() {
+        return current.get();
+    }
+
+    /**
+     * @return Incremented on every change.
+     */
+    public long getVersion() {
+        return current.get().version;
+    }
+
+    /**
+     * Get a level of the mipmap pyramid, levels are built when first needed.
+     *
+     * @param level 0 is the image itself, each next level has half the width
+     * and height.
+     * @return The requested level, or the smallest one if there are not that
+     * many levels.
+     */
+    public BufferedImage getMipmap(int level) {
+        return current.get().getMipmap(level);
+    }
+
+    /**
+     * Get the best mipmap level to draw the image at some scale: the smallest
+     * level that is not smaller than the result.
+     *
+     * @param scale The scale at which the full image would be drawn.
+     * @return The mipmap level image.
+     */
+    public BufferedImage getMipmapFor(double scale) {
+        return current.get().getMipmapFor(scale);
     }
 
     /**
@@ -44,10 +139,17 @@ public class ImageObject extends Image {
      *
      * @param listener called when another client changes the image.
      */
-    public synchronized void addListener(ImageObjectListener listener) {
+    public void addListener(ImageObjectListener listener) {
         listeners.add(listener);
     }
 
+    /**
+     * @param listener No longer called.
+     */
+    public void removeListener(ImageObjectListener listener) {
+        listeners.remove(listener);
+    }
+
     /**
      * Inform all listeners about an event(message).
      *
@@ -72,7 +174,7 @@ public class ImageObject extends Image {
      * @param ev The mouse event.
      * @param p Point the event happened.
      */
-    public synchronized void forwardMouse(MouseEvents ev, Point2D p) {
+    public void forwardMouse(MouseEvents ev, Point2D p) {
         for (ImageObjectListener listener : listeners) {
             listener.mouseEvent(this, ev, p);
         }
@@ -81,26 +183,145 @@ public class ImageObject extends Image {
     /**
      * Replace image.
      *
-     * @param replImage If null image may still have been altered in place, else
-     * replace image with replImage. All listeners will be notified.
+     * @param replImage If null image may still have been altered in place, the
+     * altered image is then copied so later changes do not reach the new
+     * snapshot, else replace image with replImage. All listeners will be
+     * notified.
+     */
+    public final void putImage(Image replImage) {
+        putImage(replImage, true);
+    }
+
+    /**
+     * Replace image.
+     *
+     * @param replImage If null image may still have been altered in place, the
+     * altered image is then copied, else replace image with replImage. All
+     * listeners will be notified.
+     * @param copy If false and replImage is a BufferedImage, it is used as is.
+     * This allows off-heap images and avoids a copy, the caller should no
+     * longer use it.
      */
-    public synchronized final void putImage(Image replImage) {
-        int oldWid = (null == this.image) ? 0 : this.image.getWidth();
-        if (null != replImage) {
-            this.image = new BufferedImage(replImage.getWidth(null), replImage.getHeight(null), BufferedImage.TYPE_INT_ARGB);
-            Graphics2D g2 = this.image.createGraphics();
+    public final void putImage(Image replImage, boolean copy) {
+        BufferedImage img = null;
+        if (!copy && replImage instanceof BufferedImage) {
+            img = (BufferedImage) replImage;
+        } else if (null != replImage) {
+            // copy outside the lock, readers keep using the old snapshot
+            img = new BufferedImage(replImage.getWidth(null), replImage.getHeight(null), BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g2 = img.createGraphics();
             g2.drawImage(replImage, 0, 0, null);
             g2.dispose();
         }
-        for (ImageObjectListener listener : listeners) {
-            if (0 == oldWid) {
-                listener.imageChanged(this, 1.0);
-            } else {
-                listener.imageChanged(this, 1.0 * oldWid / this.image.getWidth());
+        Snapshot old;
+        synchronized (this) {
+            old = current.get();
+            if (null == img) {
+                if (null == old) {
+                    throw new IllegalStateException("No image to have been altered");
+                }
+                // the altered pixels go in a buffer of their own
+                img = MappedImage.copy(old.image);
             }
+            current.set(new Snapshot(img, null == old ? 0 : old.version + 1));
+        }
+        if (cached) {
+            // no longer what the file holds
+            ImageCache.forget(this);
+        }
+        if (null != old) {
+            changed(old.image.getWidth(), null);
         }
     }
 
+    /**
+     * Publish an edited copy of the image, of which only a region differs.
+     * <p>
+     * Cheaper than putImage(): the mipmap levels that exist are copied and
+     * updated for the region only, and listeners get regionChanged() so they
+     * can redraw just that. If the image was replaced since base, the region
+     * is copied onto a copy of the newer image instead.
+     * </p>
+     *
+     * @param base The snapshot the copy was made from.
+     * @param edited The copy, altered in region and not to be used afterwards.
+     * @param region The altered pixels.
+     */
+    final void putRegion(Snapshot base, BufferedImage edited, Rectangle region) {
+        Snapshot old;
+        synchronized (this) {
+            old = current.get();
+            BufferedImage img = edited;
+            if (old != base) {
+                img = MappedImage.copy(old.image);
+                MappedImage.copyRegion(edited, img, region);
+            }
+            Snapshot snap = new Snapshot(img, old.version + 1);
+            List<BufferedImage> levels;
+            synchronized (old) {
+                levels = new ArrayList<>(old.mipmaps);
+            }
+            Rectangle r = region;
+            BufferedImage prev = img;
+            for (BufferedImage level : levels) {
+                BufferedImage copy = MappedImage.copy(level);
+                r = Mipmaps.update(prev, copy, r);
+                snap.mipmaps.add(copy);
+                prev = copy;
+            }
+            current.set(snap);
+        }
+        if (cached) {
+            ImageCache.forget(this);
+        }
+        changed(old.image.getWidth(), new Rectangle(region));
+    }
+
+    /**
+     * Schedule one notification for all changes until it runs.
+     *
+     * @param oldWid Width of the image before this change.
+     * @param region The changed region, null for all of the image.
+     */
+    private void changed(int oldWid, Rectangle region) {
+        synchronized (pendingLock) {
+            if (pending) {
+                if (null == region) {
+                    pendingAll = true;
+                } else if (!pendingAll) {
+                    pendingRegion.add(region);
+                }
+                return;
+            }
+            pending = true;
+            pendingWidth = oldWid;
+            pendingAll = null == region;
+            pendingRegion = region;
+        }
+        EventQueue.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                int oldWid;
+                Rectangle region;
+                synchronized (pendingLock) {
+                    pending = false;
+                    oldWid = pendingWidth;
+                    region = pendingAll ? null : pendingRegion;
+                }
+                if (null == region) {
+                    double hint = 1.0 * oldWid / getWidth();
+                    for (ImageObjectListener listener : listeners) {
+                        listener.imageChanged(ImageObject.this, hint);
+                    }
+                } else {
+                    for (ImageObjectListener listener : listeners) {
+                        listener.regionChanged(ImageObject.this, new Rectangle(region));
+                    }
+                }
+            }
+        });
+    }
+
     /**
      * Get the width of the current image.
      *
@@ -112,12 +333,12 @@ public class ImageObject extends Image {
 
     @Override
     public int getWidth(ImageObserver io) {
-        return image.getWidth(io);
+        return getImage().getWidth(io);
     }
 
     @Override
     public int getHeight(ImageObserver io) {
-        return image.getHeight(io);
+        return getImage().getHeight(io);
     }
 
     /**
@@ -131,17 +352,17 @@ public class ImageObject extends Image {
 
     @Override
     public ImageProducer getSource() {
-        return image.getSource();
+        return getImage().getSource();
     }
 
     @Override
     public Graphics getGraphics() {
-        return image.getGraphics();
+        return getImage().getGraphics();
     }
 
     @Override
     public Object getProperty(String string, ImageObserver io) {
-        return image.getProperty(string, null);
+        return getImage().getProperty(string, null);
     }
 
     /**
@@ -155,59 +376,106 @@ public class ImageObject extends Image {
      * @return The map.
      */
     public HashMap<String, BitShape> calculateClosestAreas(final Map<String, Point2D> pois) {
+        return calculateClosestLabels(pois).toBitShapes();
+    }
+
+    /**
+     * Like calculateClosestAreas() but as a compact label map, which also
+     * answers "which area is this point in" directly.
+     *
+     * @param pois Points of interest.
+     * @return The label map, every pixel belongs to the nearest point.
+     */
+    public LabelMap calculateClosestLabels(final Map<String, Point2D> pois) {
+        return calculateClosestLabels(pois, null);
+    }
+
+    /**
+     * Like calculateClosestLabels() but in the background.
+     *
+     * @param pois Points of interest, copied before this returns.
+     * @return The job, can be cancelled.
+     */
+    public ImageScheduler.Job<LabelMap> calculateClosestLabelsAsync(Map<String, Point2D> pois) {
+        final Map<String, Point2D> copy = new LinkedHashMap<>(pois);
+        return ImageScheduler.submit(new ImageScheduler.Task<LabelMap>() {
+            @Override
+            public LabelMap run(ImageScheduler.Job<LabelMap> job) {
+                return calculateClosestLabels(copy, job);
+            }
+        });
+    }
+
+    private LabelMap calculateClosestLabels(Map<String, Point2D> pois, ImageScheduler.Job<?> job) {
         long nanos = System.nanoTime();
-        final HashMap<String, BitShape> ret = new HashMap<>();
+        BufferedImage image = getImage();
+        int w = image.getWidth();
+        int h = image.getHeight();
+        String[] names = new String[pois.size()];
+        int[] xs = new int[names.length];
+        int[] ys = new int[names.length];
+        int n = 0;
         for (Map.Entry<String, Point2D> e : pois.entrySet()) {
-            ret.put(e.getKey(), new BitShape(getWidth()));
-        }
-
-        int numThreads = Runtime.getRuntime().availableProcessors() - 2; // Number of threads to use, leaving some cores for routine work.
-        if (numThreads < 1) {
-            numThreads = 1;
-        }
-        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
-
-        int rowsPerThread = getHeight() / numThreads;
-        for (int i = 0; i < numThreads; i++) {
-            final int yStart = i * rowsPerThread;
-            final int yEnd = (i == numThreads - 1) ? getHeight() : yStart + rowsPerThread;
-            executor.submit(new Runnable() {
-                @Override
-                public void run() {
-                    for (int y = yStart; y < yEnd; y++) {
-                        for (int x = 0; x < getWidth(); x++) {
-                            double d = 0;
-                            String poi = null;
-                            for (Map.Entry<String, Point2D> e : pois.entrySet()) {
-                                double d2 = e.getValue().distance(x, y);
-                                if (poi == null || d2 < d) {
-                                    poi = e.getKey();
-                                    d = d2;
-                                }
-                            }
-                            synchronized (ret.get(poi)) {
-                                ret.get(poi).set(new Point2D.Double(x, y));
-                            }
-                        }
-                    }
-                }
-            });
-        }
-        executor.shutdown();
-        try {
-            if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
-                throw new RuntimeException("This cannot be right.");
-            }
-        } catch (InterruptedException ex) {
-            throw new RuntimeException("We are asked to stop?", ex);
+            names[n] = e.getKey();
+            xs[n] = (int) Math.round(e.getValue().getX());
+            ys[n] = (int) Math.round(e.getValue().getY());
+            n++;
         }
+        LabelMap ret = new LabelMap(w, h, Voronoi.label(w, h, xs, ys, job), names);
         if (debug) {
-            System.out.format("calculateClosestAreas W=%d,H=%d,P=%d,T=%.2f ms\n",
-                    getWidth(), getHeight(), pois.size(), (System.nanoTime() - nanos) / 1e6);
+            System.out.format("calculateClosestLabels W=%d,H=%d,P=%d,T=%.2f ms\n",
+                    w, h, n, (System.nanoTime() - nanos) / 1e6);
         }
         return ret;
     }
 
+    /**
+     * An image and what belongs to it, as published at one moment.
+     * <p>
+     * Neither the image nor the mipmaps are altered once published, a change
+     * is a new snapshot with new buffers and a higher version.
+     * </p>
+     */
+    public static final class Snapshot {
+
+        public final BufferedImage image;
+        public final long version;
+        /**
+         * Mipmap levels 1 and up, built on demand.
+         */
+        private final List<BufferedImage> mipmaps = new ArrayList<>();
+
+        private Snapshot(BufferedImage image, long version) {
+            this.image = image;
+            this.version = version;
+        }
+
+        /**
+         * @param level 0 is the image itself, each next level has half the
+         * width and height.
+         * @return The requested level, or the smallest one if there are not
+         * that many levels.
+         */
+        public synchronized BufferedImage getMipmap(int level) {
+            while (mipmaps.size() < level) {
+                BufferedImage prev = mipmaps.isEmpty() ? image : mipmaps.get(mipmaps.size() - 1);
+                if (prev.getWidth() == 1 && prev.getHeight() == 1) {
+                    return prev;
+                }
+                mipmaps.add(Mipmaps.halve(prev, MappedImage.isOffHeap(image)));
+            }
+            return level <= 0 ? image : mipmaps.get(level - 1);
+        }
+
+        /**
+         * @param scale The scale at which the full image would be drawn.
+         * @return The mipmap level image.
+         */
+        public BufferedImage getMipmapFor(double scale) {
+            return getMipmap(Mipmaps.levelFor(scale));
+        }
+    }
+
     /**
      * Callback listener.
      */
@@ -220,7 +488,8 @@ public class ImageObject extends Image {
         }
 
         /**
-         * Image may have been altered.
+         * Image may have been altered. Called on the event dispatch thread,
+         * once for any number of changes since the previous call.
          *
          * @param imgObj Source.
          * @param resizeHint The width of the previous image divided by the
@@ -230,6 +499,18 @@ public class ImageObject extends Image {
             // default is no action
         }
 
+        /**
+         * Part of the image was altered in place, the size did not change.
+         * Called on the event dispatch thread like imageChanged().
+         *
+         * @param imgObj Source.
+         * @param region The altered pixels, may reach outside the image.
+         */
+        public void regionChanged(ImageObject imgObj, Rectangle region) {
+            // default is to treat it as a change of the whole image
+            imageChanged(imgObj, 1.0);
+        }
+
         /**
          * Used to forward mouse things by viewer implementations.
          *
@@ -4,15 +4,22 @@ package nl.infcomtec.simpleimage;
 
 import java.awt.Color;
 import java.awt.Dimension;
+import java.awt.EventQueue;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseWheelEvent;
+import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
 import javax.swing.JPanel;
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 
 /**
  *
@@ -23,11 +30,41 @@ class ImagePanel extends JPanel {
     int ofsX = 0;
     int ofsY = 0;
     double scale = 1;
-    private BufferedImage dispImage = null;
     private final ImageViewer imgView;
+    /**
+     * Delays re-rendering a scalable source until the wheel stops.
+     */
+    private final Timer rerenderTimer;
+    /**
+     * True while the user is zooming: tiles that are not ready are then drawn
+     * from the mipmap right away, nearest neighbour, instead of rendered.
+     */
+    private boolean zooming = false;
+    /**
+     * Starts the refinement when the wheel stops.
+     */
+    private final Timer settleTimer;
+    /**
+     * Renders the visible tiles in the background, only the latest one counts.
+     */
+    private ImageScheduler.Job<Void> refine;
 
     public ImagePanel(final ImageViewer imgView) {
         this.imgView = imgView;
+        settleTimer = new Timer(150, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent ae) {
+                refine();
+            }
+        });
+        settleTimer.setRepeats(false);
+        rerenderTimer = new Timer(300, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent ae) {
+                imgView.rerender(scale);
+            }
+        });
+        rerenderTimer.setRepeats(false);
         MouseAdapter ma = new MouseAdapter() {
             private int lastX;
             private int lastY;
@@ -80,8 +117,15 @@ class ImagePanel extends JPanel {
                 if (scale < 0.1) {
                     scale = 0.1; // Prevent the scale from becoming too small
                 }
-                dispImage = null;
+                zooming = true;
+                if (null != refine) {
+                    refine.cancel(false);
+                }
+                settleTimer.restart();
                 repaint(); // Repaint the panel to reflect the new scale
+                if (null != imgView.scalable && scale > 1) {
+                    rerenderTimer.restart();
+                }
             }
         };
         addMouseListener(ma);
@@ -93,10 +137,21 @@ class ImagePanel extends JPanel {
                 // If the image we are displaying is for instance 512 pixels and
                 // the new image is 1536, we need to adjust scaling to match.
                 scale *= resizeHint;
-                dispImage = null;
+                imgView.pipeline.invalidate(RenderPipeline.Stage.SCALE);
                 repaint(); // Repaint the panel to reflect any changes
             }
 
+            @Override
+            public void regionChanged(ImageObject imgObj, Rectangle region) {
+                imgView.pipeline.invalidate(region);
+                // the panel pixels of the region, with a margin for the filtering
+                int x0 = ofsX + (int) Math.floor(region.x * scale) - 2;
+                int y0 = ofsY + (int) Math.floor(region.y * scale) - 2;
+                int x1 = ofsX + (int) Math.ceil((region.x + region.width) * scale) + 2;
+                int y1 = ofsY + (int) Math.ceil((region.y + region.height) * scale) + 2;
+                repaint(x0, y0, x1 - x0, y1 - y0);
+            }
+
             @Override
             public void signal(Object any) {
                 if (any instanceof ImageViewer.ScaleCommand) {
@@ -120,7 +175,6 @@ class ImagePanel extends JPanel {
                             }
                             break;
                     }
-                    dispImage = null;
                 }
                 repaint();
             }
@@ -129,6 +183,19 @@ class ImagePanel extends JPanel {
         setPreferredSize(dim);
     }
 
+    @Override
+    public void addNotify() {
+        super.addNotify();
+        // keep a cached image while it is on screen
+        ImageCache.pin(imgView.imgObj);
+    }
+
+    @Override
+    public void removeNotify() {
+        ImageCache.unpin(imgView.imgObj);
+        super.removeNotify();
+    }
+
     private Point pixelMouse(MouseEvent e) {
         int ax = e.getX() - ofsX;
         int ay = e.getY() - ofsY;
@@ -137,27 +204,113 @@ class ImagePanel extends JPanel {
         return new Point(ax, ay);
     }
 
+    /**
+     * @return The columns and rows of the tiles that intersect the panel.
+     */
+    private Rectangle visibleTiles() {
+        int scaledWidth = (int) (imgView.imgObj.getWidth() * scale);
+        int scaledHeight = (int) (imgView.imgObj.getHeight() * scale);
+        int x0 = Math.max(0, -ofsX);
+        int y0 = Math.max(0, -ofsY);
+        int x1 = Math.min(scaledWidth, getWidth() - ofsX);
+        int y1 = Math.min(scaledHeight, getHeight() - ofsY);
+        if (x1 <= x0 || y1 <= y0) {
+            return new Rectangle();
+        }
+        int tx0 = x0 / TileCache.TILE;
+        int ty0 = y0 / TileCache.TILE;
+        int tx1 = (x1 + TileCache.TILE - 1) / TileCache.TILE;
+        int ty1 = (y1 + TileCache.TILE - 1) / TileCache.TILE;
+        return new Rectangle(tx0, ty0, tx1 - tx0, ty1 - ty0);
+    }
+
+    /**
+     * Render the visible tiles at full quality in the background, then leave
+     * zooming mode and repaint with them.
+     */
+    private void refine() {
+        if (null != refine) {
+            refine.cancel(false);
+        }
+        final double s = scale;
+        final Rectangle tiles = visibleTiles();
+        refine = ImageScheduler.submit(new ImageScheduler.Task<Void>() {
+            @Override
+            public Void run(final ImageScheduler.Job<Void> job) {
+                int done = 0;
+                for (int ty = tiles.y; ty < tiles.y + tiles.height; ty++) {
+                    for (int tx = tiles.x; tx < tiles.x + tiles.width; tx++) {
+                        job.checkCancelled();
+                        imgView.pipeline.tile(s, tx, ty);
+                        job.setProgress(++done / (double) (tiles.width * tiles.height));
+                    }
+                }
+                EventQueue.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (refine == job && scale == s) {
+                            zooming = false;
+                            repaint();
+                        }
+                    }
+                });
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Draw the image quickly from the nearest mipmap level.
+     */
+    private void drawPreview(Graphics g) {
+        Graphics2D g2 = (Graphics2D) g.create();
+        g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+        ImageObject.Snapshot snap = imgView.imgObj.getSnapshot();
+        BufferedImage src = snap.getMipmapFor(scale);
+        AffineTransform at = AffineTransform.getTranslateInstance(ofsX, ofsY);
+        at.scale(scale * snap.image.getWidth() / src.getWidth(), scale * snap.image.getHeight() / src.getHeight());
+        if (MappedImage.isOffHeap(src)) {
+            // Java2D would copy the whole image, copy just what is visible
+            Rectangle r = new Rectangle((int) Math.floor(-ofsX / at.getScaleX()) - 1,
+                    (int) Math.floor(-ofsY / at.getScaleY()) - 1,
+                    (int) Math.ceil(getWidth() / at.getScaleX()) + 3, (int) Math.ceil(getHeight() / at.getScaleY()) + 3);
+            r = r.intersection(new Rectangle(src.getWidth(), src.getHeight()));
+            if (!r.isEmpty()) {
+                at.translate(r.x, r.y);
+                g2.drawImage(MappedImage.getTile(src, r), at, null);
+            }
+        } else {
+            g2.drawImage(src, at, null);
+        }
+        g2.dispose();
+    }
+
     @Override
     public void paint(Graphics g) {
         g.setColor(Color.DARK_GRAY);
         g.fillRect(0, 0, getWidth(), getHeight());
-        if (null == dispImage) {
-            int scaledWidth = (int) (imgView.imgObj.getWidth() * scale);
-            int scaledHeight = (int) (imgView.imgObj.getHeight() * scale);
-            dispImage = new BufferedImage(scaledWidth, scaledHeight, BufferedImage.TYPE_INT_ARGB);
-            Graphics2D g2 = dispImage.createGraphics();
-            g2.drawImage(imgView.imgObj.getScaledInstance(scaledWidth, scaledHeight, BufferedImage.SCALE_SMOOTH), 0, 0, null);
-            g2.dispose();
-            if (null != imgView.lut) {
-                dispImage = imgView.lut.apply(dispImage);
-            }
-            if (null != imgView.marks) {
-                for (Marker marker : imgView.marks) {
-                    marker.mark(dispImage);
-                }
+        // only the tiles that intersect the panel
+        Rectangle tiles = visibleTiles();
+        imgView.pipeline.setView(scale, tiles);
+        BufferedImage[] ready = new BufferedImage[tiles.width * tiles.height];
+        boolean missing = false;
+        for (int i = 0; i < ready.length; i++) {
+            int tx = tiles.x + i % tiles.width;
+            int ty = tiles.y + i / tiles.width;
+            // while zooming do not wait for tiles, refine() renders them
+            ready[i] = zooming ? imgView.pipeline.cached(scale, tx, ty) : imgView.pipeline.tile(scale, tx, ty);
+            missing |= null == ready[i];
+        }
+        if (missing) {
+            drawPreview(g);
+        }
+        for (int i = 0; i < ready.length; i++) {
+            if (null != ready[i]) {
+                int tx = tiles.x + i % tiles.width;
+                int ty = tiles.y + i / tiles.width;
+                g.drawImage(ready[i], ofsX + tx * TileCache.TILE, ofsY + ty * TileCache.TILE, null);
             }
         }
-        g.drawImage(dispImage, ofsX, ofsY, null);
         if (null != imgView.message) {
             if (0 == imgView.shownLast) {
                 imgView.shownLast = System.currentTimeMillis();
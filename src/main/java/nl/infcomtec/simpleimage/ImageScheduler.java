@@ -0,0 +1,257 @@
+package nl.infcomtec.simpleimage;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The one thread pool for image processing in this package.
+ * <p>
+ * LUTs, mipmaps, nearest point areas and markers all split their rows over
+ * this pool, so several viewers working at the same time share the cores
+ * instead of each starting their own threads. The number of threads defaults
+ * to the number of cores minus one, it can be set with the system property
+ * simpleimage.parallelism or setParallelism().
+ * </p><p>
+ * Long operations can also be submitted as a Job, a CompletableFuture that
+ * reports progress and stops at the next band of rows when cancelled.
+ * </p>
+ *
+ * @author Walter Stroebel
+ */
+public final class ImageScheduler {
+
+    /**
+     * Work on a band of rows.
+     */
+    public interface Rows {
+
+        /**
+         * @param y0 First row.
+         * @param y1 Last row plus one.
+         */
+        void rows(int y0, int y1);
+    }
+
+    /**
+     * Work to run as a Job.
+     *
+     * @param <T> Result type.
+     */
+    public interface Task<T> {
+
+        /**
+         * @param job The job, to report progress and check for cancellation.
+         * @return The result.
+         * @throws Exception Completes the job exceptionally.
+         */
+        T run(Job<T> job) throws Exception;
+    }
+
+    /**
+     * Handle on submitted work.
+     *
+     * @param <T> Result type.
+     */
+    public static class Job<T> extends CompletableFuture<T> {
+
+        private volatile double progress;
+
+        /**
+         * @return Progress from 0 to 1.
+         */
+        public double getProgress() {
+            return isDone() ? 1 : progress;
+        }
+
+        /**
+         * @param progress Progress from 0 to 1.
+         */
+        public void setProgress(double progress) {
+            this.progress = progress;
+        }
+
+        /**
+         * Throw if the job was cancelled, long tasks should call this now and
+         * then.
+         *
+         * @throws CancellationException If cancelled.
+         */
+        public void checkCancelled() {
+            if (isCancelled()) {
+                throw new CancellationException();
+            }
+        }
+    }
+
+    private static int parallelism = Integer.getInteger("simpleimage.parallelism",
+            Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+    private static ForkJoinPool pool;
+
+    private ImageScheduler() {
+    }
+
+    /**
+     * @return The number of threads.
+     */
+    public static synchronized int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Change the number of threads. Work already running or queued finishes
+     * on the old threads.
+     *
+     * @param threads The number of threads, at least 1.
+     */
+    public static void setParallelism(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+        }
+        ForkJoinPool old;
+        synchronized (ImageScheduler.class) {
+            if (threads == parallelism) {
+                return;
+            }
+            parallelism = threads;
+            old = pool;
+            if (null != old) {
+                pool = new ForkJoinPool(parallelism);
+            }
+        }
+        // after the swap, new work goes to the new pool and this one drains
+        if (null != old) {
+            old.shutdown();
+        }
+    }
+
+    /**
+     * @return The pool, created when first needed.
+     */
+    public static synchronized ForkJoinPool getPool() {
+        if (null == pool) {
+            pool = new ForkJoinPool(parallelism);
+        }
+        return pool;
+    }
+
+    /**
+     * Run a task in the background.
+     *
+     * @param <T> Result type.
+     * @param task The task.
+     * @return The job, cancel() stops it at the next check.
+     */
+    public static <T> Job<T> submit(final Task<T> task) {
+        final Job<T> job = new Job<>();
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                if (job.isDone()) {
+                    return; // cancelled before it started
+                }
+                try {
+                    job.complete(task.run(job));
+                } catch (Throwable t) {
+                    job.completeExceptionally(t);
+                }
+            }
+        });
+        return job;
+    }
+
+    /**
+     * Run something on the pool. A caller that got the pool just before
+     * setParallelism() replaced it is rejected by the old one, it tries the
+     * new one.
+     *
+     * @param r The work.
+     */
+    private static void execute(Runnable r) {
+        while (true) {
+            ForkJoinPool p = getPool();
+            try {
+                p.execute(r);
+                return;
+            } catch (RejectedExecutionException ex) {
+                if (p == getPool()) {
+                    throw ex;
+                }
+            }
+        }
+    }
+
+    /**
+     * Process rows in parallel bands and wait for them.
+     *
+     * @param height Number of rows.
+     * @param grain Rows per band.
+     * @param body The work.
+     */
+    public static void forRows(int height, int grain, Rows body) {
+        forRows(height, grain, body, null);
+    }
+
+    /**
+     * Process rows in parallel bands and wait for them, reporting progress to
+     * a job and stopping when it is cancelled.
+     *
+     * @param height Number of rows.
+     * @param grain Rows per band.
+     * @param body The work.
+     * @param job The job or null.
+     * @throws CancellationException If the job was cancelled.
+     */
+    public static void forRows(int height, int grain, Rows body, Job<?> job) {
+        if (height <= 0) {
+            return;
+        }
+        if (height <= grain && null == job) {
+            body.rows(0, height);
+            return;
+        }
+        RecursiveAction action = split(0, height, Math.max(1, grain), body, job, height, new AtomicInteger());
+        while (true) {
+            ForkJoinPool p = getPool();
+            if (ForkJoinTask.inForkJoinPool() && ForkJoinTask.getPool() == p) {
+                action.invoke();
+                return;
+            }
+            try {
+                p.invoke(action);
+                return;
+            } catch (RejectedExecutionException ex) {
+                // replaced by setParallelism(), the action did not start
+                if (p == getPool()) {
+                    throw ex;
+                }
+            }
+        }
+    }
+
+    private static RecursiveAction split(final int y0, final int y1, final int grain, final Rows body,
+            final Job<?> job, final int height, final AtomicInteger done) {
+        return new RecursiveAction() {
+            @Override
+            protected void compute() {
+                if (y1 - y0 <= grain) {
+                    if (null != job) {
+                        job.checkCancelled();
+                    }
+                    body.rows(y0, y1);
+                    if (null != job) {
+                        job.setProgress((double) done.addAndGet(y1 - y0) / height);
+                    }
+                } else {
+                    int mid = (y0 + y1) >>> 1;
+                    invokeAll(split(y0, mid, grain, body, job, height, done),
+                            split(mid, y1, grain, body, job, height, done));
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,268 @@
+package nl.infcomtec.simpleimage;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Saves images without making anybody wait for PNG compression.
+ * <p>
+ * save() writes the image in a fast format, QOI by default, in the
+ * background and is done as soon as that file exists. A single low priority
+ * thread then transcodes the file to the final format, best compression PNG
+ * by default, and removes the fast file. Both encoders can be replaced.
+ * MappedImage.read() and so everything that opens image files accepts either
+ * format, resolve() finds the file a fast file was transcoded to.
+ * </p>
+ *
+ * @author Walter Stroebel
+ */
+public final class ImageStore {
+
+    /**
+     * Writes images in one format.
+     */
+    public interface Encoder {
+
+        /**
+         * @return File extension including the dot, for instance ".png".
+         */
+        String getExtension();
+
+        /**
+         * @param image The image.
+         * @param f The file to write.
+         * @throws IOException Whenever.
+         */
+        void write(BufferedImage image, File f) throws IOException;
+    }
+
+    /**
+     * QOI, lossless and about as fast as copying the pixels.
+     */
+    public static final Encoder QOI = new Encoder() {
+        @Override
+        public String getExtension() {
+            return ".qoi";
+        }
+
+        @Override
+        public void write(BufferedImage image, File f) throws IOException {
+            Qoi.write(image, f);
+        }
+    };
+
+    /**
+     * PNG with the best compression ImageIO has, slow but small.
+     */
+    public static final Encoder PNG = new Encoder() {
+        @Override
+        public String getExtension() {
+            return ".png";
+        }
+
+        @Override
+        public void write(BufferedImage image, File f) throws IOException {
+            Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("png");
+            if (!writers.hasNext()) {
+                throw new IOException("No PNG writer");
+            }
+            ImageWriter writer = writers.next();
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (param.canWriteCompressed()) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(0f);
+            }
+            f.delete();
+            try (ImageOutputStream ios = ImageIO.createImageOutputStream(f)) {
+                writer.setOutput(ios);
+                writer.write(null, new IIOImage(image, null, null), param);
+            } finally {
+                writer.dispose();
+            }
+        }
+    };
+
+    private static Encoder fast = QOI;
+    private static Encoder last = PNG;
+    private static final ExecutorService transcoder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Image transcoder");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        }
+    });
+
+    private ImageStore() {
+    }
+
+    /**
+     * @param encoder Writes the file save() is done after.
+     */
+    public static synchronized void setFastEncoder(Encoder encoder) {
+        fast = encoder;
+    }
+
+    /**
+     * @param encoder Writes the file that replaces the fast one, null to keep
+     * the fast file.
+     */
+    public static synchronized void setFinalEncoder(Encoder encoder) {
+        last = encoder;
+    }
+
+    /**
+     * @param f A file.
+     * @return true if it has the extension of either encoder or is a QOI file.
+     */
+    public static synchronized boolean isImageFile(File f) {
+        String name = f.getName().toLowerCase();
+        return name.endsWith(fast.getExtension()) || (null != last && name.endsWith(last.getExtension()))
+                || name.endsWith(QOI.getExtension()) || name.endsWith(PNG.getExtension());
+    }
+
+    /**
+     * Save an image in the background.
+     *
+     * @param image The image, should not be changed afterwards as it is also
+     * used for the transcoding.
+     * @param base The file without extension.
+     * @return The job, the result is the fast file.
+     */
+    public static ImageScheduler.Job<File> save(final BufferedImage image, final File base) {
+        final Encoder first;
+        final Encoder second;
+        synchronized (ImageStore.class) {
+            first = fast;
+            second = last;
+        }
+        return ImageScheduler.submit(new ImageScheduler.Task<File>() {
+            @Override
+            public File run(ImageScheduler.Job<File> job) {
+                File f = new File(base.getPath() + first.getExtension());
+                try {
+                    first.write(image, f);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+                if (null != second && !second.getExtension().equals(first.getExtension())) {
+                    transcode(image, f, second);
+                }
+                return f;
+            }
+        });
+    }
+
+    /**
+     * Queue a fast file for conversion to the final format.
+     *
+     * @param image The decoded image or null to read it from f.
+     * @param f The fast file.
+     * @param encoder The final format.
+     */
+    private static void transcode(final BufferedImage image, final File f, final Encoder encoder) {
+        transcoder.execute(new Runnable() {
+            @Override
+            public void run() {
+                File dst = finalFile(f, encoder);
+                // write under a hidden name, readers see either file complete
+                File tmp = new File(f.getParentFile(), "." + dst.getName() + ".tmp");
+                try {
+                    encoder.write(null == image ? MappedImage.read(f) : image, tmp);
+                    Files.move(tmp.toPath(), dst.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+                    f.delete();
+                } catch (IOException | RuntimeException ex) {
+                    // the fast file stays, transcodePending() tries again next time
+                    tmp.delete();
+                    Logger.getLogger(ImageStore.class.getName()).log(Level.WARNING, "Cannot transcode " + f, ex);
+                }
+            }
+        });
+    }
+
+    private static File finalFile(File f, Encoder encoder) {
+        String name = f.getName();
+        int dot = name.lastIndexOf('.');
+        return new File(f.getParentFile(), (dot < 0 ? name : name.substring(0, dot)) + encoder.getExtension());
+    }
+
+    /**
+     * Queue the fast files in a directory that were not transcoded yet, for
+     * instance because the program stopped before it got to them.
+     *
+     * @param dir The directory.
+     */
+    public static void transcodePending(File dir) {
+        Encoder first;
+        Encoder second;
+        synchronized (ImageStore.class) {
+            first = fast;
+            second = last;
+        }
+        File[] files = dir.listFiles();
+        if (null == second || null == files || second.getExtension().equals(first.getExtension())) {
+            return;
+        }
+        for (File f : files) {
+            if (f.getName().toLowerCase().endsWith(first.getExtension())) {
+                transcode(null, f, second);
+            }
+        }
+    }
+
+    /**
+     * Find an image that may have been transcoded since its name was taken.
+     *
+     * @param f A file name, for instance of a fast file.
+     * @return f if it exists, else the transcoded file if that exists, else
+     * f.
+     */
+    public static File resolve(File f) {
+        if (!f.exists()) {
+            Encoder second;
+            synchronized (ImageStore.class) {
+                second = last;
+            }
+            if (null != second) {
+                File t = finalFile(f, second);
+                if (t.exists()) {
+                    return t;
+                }
+            }
+        }
+        return f;
+    }
+
+    /**
+     * @param f An image file.
+     * @return true if f is a fast file and the final file exists too, in
+     * which case the fast file is about to be removed.
+     */
+    public static boolean isSuperseded(File f) {
+        Encoder first;
+        Encoder second;
+        synchronized (ImageStore.class) {
+            first = fast;
+            second = last;
+        }
+        return null != second && !second.getExtension().equals(first.getExtension())
+                && f.getName().toLowerCase().endsWith(first.getExtension()) && finalFile(f, second).exists();
+    }
+}
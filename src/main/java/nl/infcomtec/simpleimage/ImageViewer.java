@@ -12,7 +12,6 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.util.LinkedList;
 import java.util.List;
-import javax.imageio.ImageIO;
 import javax.swing.AbstractAction;
 import javax.swing.Action;
 import javax.swing.ButtonGroup;
@@ -38,9 +37,37 @@ public class ImageViewer {
     public long shownLast = 0;
     public Font messageFont = UIManager.getFont("Label.font");
 
+    /**
+     * Upper limit for re-rendering a scalable source, in pixels.
+     */
+    public static final long MAX_RENDER_PIXELS = 64L * 1024 * 1024;
     public final ImageObject imgObj;
+    /**
+     * Use setLut() to change, so the display is updated.
+     */
     public LUT lut;
     public List<Marker> marks;
+    /**
+     * Scaled, LUT and marker stages of the display, each cached.
+     */
+    final RenderPipeline pipeline = new RenderPipeline(this);
+    /**
+     * If not null, the image can be rendered again at a higher scale.
+     */
+    public ScalableSource scalable;
+    /**
+     * Scale at which the current image was rendered from the scalable source.
+     */
+    public double renderedScale = 1;
+    /**
+     * If not null, the image is an overview and full resolution parts can be
+     * loaded from here when zooming in.
+     */
+    public LazyImageLoader lazy;
+    /**
+     * The re-render in progress, cancelled when another one is requested.
+     */
+    private ImageScheduler.Job<BufferedImage> rendering;
 
     public ImageViewer(ImageObject imgObj) {
         this.imgObj = imgObj;
@@ -71,18 +98,124 @@ public class ImageViewer {
             marks = new LinkedList<>();
         }
         marks.add(marker);
-        imgObj.putImage(null);
+        pipeline.invalidate(RenderPipeline.Stage.MARKERS);
+        imgObj.sendSignal(null);
     }
 
     public synchronized void clearMarkers() {
         marks = null;
-        imgObj.putImage(null);
+        pipeline.invalidate(RenderPipeline.Stage.MARKERS);
+        imgObj.sendSignal(null);
+    }
+
+    /**
+     * Change the LUT, the image is not scaled again.
+     *
+     * @param lut The new LUT, null for none.
+     * @return For chaining.
+     */
+    public synchronized ImageViewer setLut(LUT lut) {
+        this.lut = lut;
+        pipeline.invalidate(RenderPipeline.Stage.LUT);
+        imgObj.sendSignal(null);
+        return this;
+    }
+
+    /**
+     * Allow the image to be rendered again when zooming in. This replaces the
+     * image, so it should not be shared with other viewers. For a file use
+     * ImageViewer(File, ScalableSource, double).
+     *
+     * @param source The source of the image.
+     * @param renderedScale The scale the current image was rendered at.
+     * @return For chaining.
+     */
+    public synchronized ImageViewer setScalableSource(ScalableSource source, double renderedScale) {
+        this.scalable = source;
+        this.renderedScale = renderedScale;
+        return this;
     }
 
+    /**
+     * Render the scalable source again, on the ImageScheduler, so the image
+     * will have the resolution needed for the current view scale. A new
+     * request cancels the previous one, which then does not start or is not
+     * shown.
+     *
+     * @param viewScale The scale the image is displayed at.
+     */
+    public synchronized void rerender(double viewScale) {
+        if (null == scalable) {
+            return;
+        }
+        double target = renderedScale * viewScale;
+        double pixels = (double) imgObj.getWidth() * imgObj.getHeight() * viewScale * viewScale;
+        if (pixels > MAX_RENDER_PIXELS) {
+            target = renderedScale * Math.sqrt(MAX_RENDER_PIXELS / ((double) imgObj.getWidth() * imgObj.getHeight()));
+        }
+        if (target <= renderedScale * 1.05) {
+            return; // no visible gain
+        }
+        if (null != rendering) {
+            rendering.cancel(false);
+        }
+        final double renderScale = target;
+        final ScalableSource source = scalable;
+        rendering = ImageScheduler.submit(new ImageScheduler.Task<BufferedImage>() {
+            @Override
+            public BufferedImage run(ImageScheduler.Job<BufferedImage> job) {
+                BufferedImage img = source.render(renderScale);
+                synchronized (ImageViewer.this) {
+                    if (null == img || job.isCancelled()) {
+                        return null;
+                    }
+                    renderedScale = renderScale;
+                    imgObj.putImage(img);
+                }
+                return img;
+            }
+        });
+    }
+
+    /**
+     * View a file, the image is shared with other viewers of the same file.
+     *
+     * @param f The file.
+     */
     public ImageViewer(File f) {
+        this(f, true);
+    }
+
+    /**
+     * View a file that can be rendered again when zooming in. Re-rendering
+     * replaces the image, so this viewer gets an image of its own.
+     *
+     * @param f The file, rendered from source at renderedScale.
+     * @param source The source of the image.
+     * @param renderedScale The scale the file was rendered at.
+     */
+    public ImageViewer(File f, ScalableSource source, double renderedScale) {
+        this(f, false);
+        this.scalable = source;
+        this.renderedScale = renderedScale;
+    }
+
+    private ImageViewer(File f, boolean shared) {
         ImageObject tmp;
         try {
-            tmp = new ImageObject(ImageIO.read(f));
+            // ImageIO does not read the fast format of ImageStore, so no lazy loading
+            LazyImageLoader loader = Qoi.isQoi(f) ? null : new LazyImageLoader(f);
+            if (null != loader && (long) loader.getWidth() * loader.getHeight() > LazyImageLoader.LAZY_PIXELS) {
+                // show an overview now, the details when zooming in
+                tmp = new ImageObject(loader.readOverview(LazyImageLoader.OVERVIEW_PIXELS));
+                lazy = loader;
+            } else if (shared) {
+                // shared with other viewers of the same file
+                tmp = ImageCache.get(f);
+            } else {
+                BufferedImage img = MappedImage.read(f);
+                tmp = MappedImage.isOffHeap(img) ? new ImageObject(img, false) : new ImageObject(img);
+            }
         } catch (Exception ex) {
             tmp = showError(f);
         }
@@ -130,36 +263,31 @@ public class ImageViewer {
         addChoice(bg, new AbstractAction("Dark") {
             @Override
             public void actionPerformed(ActionEvent ae) {
-                lut = LUT.darker();
-                imgObj.putImage(null);
+                setLut(LUT.darker());
             }
         });
         addChoice(bg, new AbstractAction("Normal") {
             @Override
             public void actionPerformed(ActionEvent ae) {
-                lut = LUT.unity();
-                imgObj.putImage(null);
+                setLut(LUT.unity());
             }
         }, true);
         addChoice(bg, new AbstractAction("Bright") {
             @Override
             public void actionPerformed(ActionEvent ae) {
-                lut = LUT.brighter();
-                imgObj.putImage(null);
+                setLut(LUT.brighter());
             }
         });
         addChoice(bg, new AbstractAction("Brighter") {
             @Override
             public void actionPerformed(ActionEvent ae) {
-                lut = LUT.sqrt(0);
-                imgObj.putImage(null);
+                setLut(LUT.sqrt(0));
             }
         });
         addChoice(bg, new AbstractAction("Extreme") {
             @Override
             public void actionPerformed(ActionEvent ae) {
-                lut = LUT.sqrt2();
-                imgObj.putImage(null);
+                setLut(LUT.sqrt2());
             }
         });
         return this;
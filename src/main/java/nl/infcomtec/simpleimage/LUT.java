@@ -1,7 +1,12 @@
 package nl.infcomtec.simpleimage;
 
+import java.awt.AlphaComposite;
 import java.awt.Color;
+import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.WritableRaster;
 
 /**
  * Look-Up table.
@@ -225,19 +230,233 @@ public class LUT {
         return (r[rv & 0xFF] << 16) + (g[gv & 0xFF] << 8) + b[bv & 0xFF];
     }
 
+    /**
+     * Look up an ARGB value, without creating objects.
+     *
+     * @param argb The pixel.
+     * @return The pixel with the LUT applied, alpha unchanged.
+     */
+    public int lutARGB(int argb) {
+        return (argb & 0xFF000000) | (r[(argb >> 16) & 0xFF] << 16) | (g[(argb >> 8) & 0xFF] << 8) | b[argb & 0xFF];
+    }
+
+    /**
+     * Combine two LUTs into one, so a chain of them costs a single pass.
+     *
+     * @param next The LUT to apply after this one.
+     * @return A LUT that has the effect of this one followed by next.
+     */
+    public LUT then(LUT next) {
+        LUT ret = new LUT();
+        for (int c = 0; c < 256; c++) {
+            ret.r[c] = next.r[r[c]];
+            ret.g[c] = next.g[g[c]];
+            ret.b[c] = next.b[b[c]];
+        }
+        return ret;
+    }
+
+    /**
+     * Combine any number of LUTs into one.
+     *
+     * @param luts The LUTs, in the order they should be applied.
+     * @return A single LUT with the same effect, unity if there are none.
+     */
+    public static LUT chain(LUT... luts) {
+        LUT ret = unity();
+        for (LUT l : luts) {
+            ret = ret.then(l);
+        }
+        return ret;
+    }
+
+    /**
+     * Apply the LUT to a copy of an image.
+     *
+     * @param source Any image, it is not changed.
+     * @return A new TYPE_INT_ARGB image.
+     */
     public BufferedImage apply(BufferedImage source) {
+        return apply(source, null);
+    }
+
+    /**
+     * Apply the LUT to a copy of an image in the background.
+     *
+     * @param source Any image, it should not change while the job runs.
+     * @return The job, its result is a new TYPE_INT_ARGB image.
+     */
+    public ImageScheduler.Job<BufferedImage> applyAsync(final BufferedImage source) {
+        return ImageScheduler.submit(new ImageScheduler.Task<BufferedImage>() {
+            @Override
+            public BufferedImage run(ImageScheduler.Job<BufferedImage> job) {
+                return apply(source, job);
+            }
+        });
+    }
+
+    private BufferedImage apply(BufferedImage source, ImageScheduler.Job<?> job) {
         int width = source.getWidth();
         int height = source.getHeight();
         BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                int p = source.getRGB(x, y);
-                int rv = (p & 0xFF0000) >> 16;
-                int gv = (p & 0xFF00) >> 8;
-                int bv = p & 0xFF;
-                image.setRGB(x, y, (p & 0xFF000000) + (r[rv] << 16) + (g[gv] << 8) + b[bv]);
-            }
+        int[] dst = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        if (source.getType() == BufferedImage.TYPE_INT_ARGB && isPlain(source.getRaster(), 1)) {
+            System.arraycopy(((DataBufferInt) source.getRaster().getDataBuffer()).getData(), 0, dst, 0, dst.length);
+        } else if (MappedImage.isOffHeap(source)) {
+            MappedImage.getPixels(source, 0, 0, width, height, dst);
+        } else {
+            // a native blit converts much faster than getRGB()
+            Graphics2D g2 = image.createGraphics();
+            g2.setComposite(AlphaComposite.Src);
+            g2.drawImage(source, 0, 0, null);
+            g2.dispose();
         }
+        run(new Pass(image, ARGB), job);
+        return image;
+    }
+
+    /**
+     * Apply the LUT to an image, changing it.
+     * <p>
+     * Integer RGB and byte BGR images are processed on their raw pixel arrays,
+     * with the rows split over the ImageScheduler. Other types use slower row
+     * by row conversions.
+     * </p>
+     *
+     * @param image The image to change.
+     * @return The same image, for chaining.
+     */
+    public BufferedImage applyInPlace(BufferedImage image) {
+        run(new Pass(image, layout(image)), null);
         return image;
     }
+
+    /**
+     * Rows per parallel task.
+     */
+    private static final int ROWS = 64;
+    /**
+     * Pixel layouts we can do directly on the raster.
+     */
+    private static final int GENERIC = 0;
+    private static final int ARGB = 1;
+    private static final int BGR = 2;
+    private static final int BYTE_BGR = 3;
+    private static final int BYTE_ABGR = 4;
+    private static final int OFF_HEAP = 5;
+
+    private static int layout(BufferedImage image) {
+        WritableRaster raster = image.getRaster();
+        switch (image.getType()) {
+            case BufferedImage.TYPE_INT_ARGB:
+            case BufferedImage.TYPE_INT_RGB:
+                return isPlain(raster, 1) ? ARGB : GENERIC;
+            case BufferedImage.TYPE_INT_BGR:
+                return isPlain(raster, 1) ? BGR : GENERIC;
+            case BufferedImage.TYPE_3BYTE_BGR:
+                return isPlain(raster, 3) ? BYTE_BGR : GENERIC;
+            case BufferedImage.TYPE_4BYTE_ABGR:
+                return isPlain(raster, 4) ? BYTE_ABGR : GENERIC;
+            default:
+                return MappedImage.isOffHeap(image) ? OFF_HEAP : GENERIC;
+        }
+    }
+
+    /**
+     * @return true if the raster owns its whole data array, not a sub-image.
+     */
+    private static boolean isPlain(WritableRaster raster, int elemsPerPixel) {
+        return raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0
+                && raster.getDataBuffer().getNumBanks() == 1
+                && raster.getDataBuffer().getSize() == raster.getWidth() * raster.getHeight() * elemsPerPixel;
+    }
+
+    private static void run(Pass pass, ImageScheduler.Job<?> job) {
+        ImageScheduler.forRows(pass.height, ROWS, pass, job);
+    }
+
+    /**
+     * One application of the LUT to one image.
+     */
+    private class Pass implements ImageScheduler.Rows {
+
+        final BufferedImage image;
+        final int layout;
+        final int width;
+        final int height;
+        // packed tables, ready to be or-ed together
+        final int[] pr = new int[256];
+        final int[] pg = new int[256];
+        final int[] pb = new int[256];
+
+        Pass(BufferedImage image, int layout) {
+            this.image = image;
+            this.layout = layout;
+            this.width = image.getWidth();
+            this.height = image.getHeight();
+            boolean swap = layout == BGR;
+            for (int c = 0; c < 256; c++) {
+                pr[c] = (r[c] & 0xFF) << (swap ? 0 : 16);
+                pg[c] = (g[c] & 0xFF) << 8;
+                pb[c] = (b[c] & 0xFF) << (swap ? 16 : 0);
+            }
+        }
+
+        @Override
+        public void rows(int y0, int y1) {
+            switch (layout) {
+                case ARGB:
+                    ints(((DataBufferInt) image.getRaster().getDataBuffer()).getData(), y0 * width, y1 * width, pr, pg, pb);
+                    break;
+                case BGR:
+                    // same code, the tables were built with red and blue swapped
+                    ints(((DataBufferInt) image.getRaster().getDataBuffer()).getData(), y0 * width, y1 * width, pb, pg, pr);
+                    break;
+                case BYTE_BGR:
+                    bytes(((DataBufferByte) image.getRaster().getDataBuffer()).getData(), y0 * width * 3, y1 * width * 3, 3);
+                    break;
+                case BYTE_ABGR:
+                    bytes(((DataBufferByte) image.getRaster().getDataBuffer()).getData(), y0 * width * 4 + 1, y1 * width * 4, 4);
+                    break;
+                case OFF_HEAP: {
+                    int[] row = new int[width];
+                    for (int y = y0; y < y1; y++) {
+                        MappedImage.getPixels(image, 0, y, width, 1, row);
+                        ints(row, 0, width, pr, pg, pb);
+                        MappedImage.setPixels(image, 0, y, width, 1, row);
+                    }
+                    break;
+                }
+                default: {
+                    int[] row = new int[width];
+                    for (int y = y0; y < y1; y++) {
+                        image.getRGB(0, y, width, 1, row, 0, width);
+                        ints(row, 0, width, pr, pg, pb);
+                        image.setRGB(0, y, width, 1, row, 0, width);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Packed pixels, the tables are indexed by bits 16-23, 8-15 and 0-7.
+         */
+        private void ints(int[] px, int from, int to, int[] hi, int[] mid, int[] lo) {
+            for (int i = from; i < to; i++) {
+                int p = px[i];
+                px[i] = (p & 0xFF000000) | hi[(p >> 16) & 0xFF] | mid[(p >> 8) & 0xFF] | lo[p & 0xFF];
+            }
+        }
+
+        /**
+         * Byte pixels, blue green red starting at from.
+         */
+        private void bytes(byte[] px, int from, int to, int step) {
+            for (int i = from; i < to; i += step) {
+                px[i] = (byte) b[px[i] & 0xFF];
+                px[i + 1] = (byte) g[px[i + 1] & 0xFF];
+                px[i + 2] = (byte) r[px[i + 2] & 0xFF];
+            }
+        }
+    }
 }
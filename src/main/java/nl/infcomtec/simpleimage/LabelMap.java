@@ -0,0 +1,234 @@
+package nl.infcomtec.simpleimage;
+
+import java.awt.Rectangle;
+import java.awt.geom.Point2D;
+import java.util.HashMap;
+
+/**
+ * Areas as one label per pixel.
+ * <p>
+ * Where a map of BitShapes costs a full size bit set per area, this costs a
+ * single int per pixel no matter how many areas there are. Finding the area
+ * of a point is one array access. The bounding box of each area is kept so
+ * the spans of an area can be visited without scanning the whole raster.
+ * </p>
+ *
+ * @author Walter Stroebel
+ */
+public class LabelMap {
+
+    private final int width;
+    private final int height;
+    private final int[] labels;
+    private final String[] names;
+    private final HashMap<String, Integer> index = new HashMap<>();
+    private final Rectangle[] bounds;
+
+    /**
+     * Wrap a label raster.
+     *
+     * @param width Width.
+     * @param height Height.
+     * @param labels Row by row an index in names, or -1 for no area.
+     * @param names The label dictionary.
+     */
+    public LabelMap(int width, int height, int[] labels, String[] names) {
+        this.width = width;
+        this.height = height;
+        this.labels = labels;
+        this.names = names;
+        this.bounds = new Rectangle[names.length];
+        for (int i = 0; i < names.length; i++) {
+            index.put(names[i], i);
+        }
+        int[] minX = new int[names.length];
+        int[] minY = new int[names.length];
+        int[] maxX = new int[names.length];
+        int[] maxY = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            minX[i] = minY[i] = Integer.MAX_VALUE;
+            maxX[i] = maxY[i] = -1;
+        }
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            for (int x = 0; x < width; x++) {
+                int l = labels[row + x];
+                if (l >= 0) {
+                    minX[l] = Math.min(minX[l], x);
+                    maxX[l] = Math.max(maxX[l], x);
+                    minY[l] = Math.min(minY[l], y);
+                    maxY[l] = y;
+                }
+            }
+        }
+        for (int i = 0; i < names.length; i++) {
+            bounds[i] = maxX[i] < 0 ? new Rectangle()
+                    : new Rectangle(minX[i], minY[i], maxX[i] - minX[i] + 1, maxY[i] - minY[i] + 1);
+        }
+    }
+
+    /**
+     * @return Width.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return Height.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return Number of labels.
+     */
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * @param i Label index.
+     * @return The label.
+     */
+    public String getName(int i) {
+        return names[i];
+    }
+
+    /**
+     * @param name A label.
+     * @return Its index or -1 if unknown.
+     */
+    public int indexOf(String name) {
+        Integer i = index.get(name);
+        return null == i ? -1 : i;
+    }
+
+    /**
+     * @param i Label index.
+     * @return The bounding box of the area, empty if it has no pixels.
+     */
+    public Rectangle getBounds(int i) {
+        return new Rectangle(bounds[i]);
+    }
+
+    /**
+     * @param x
+     * @param y
+     * @return Label index at (x,y), -1 if none or outside.
+     */
+    public int indexAt(int x, int y) {
+        if (x < 0 || y < 0 || x >= width || y >= height) {
+            return -1;
+        }
+        return labels[y * width + x];
+    }
+
+    /**
+     * @param x
+     * @param y
+     * @return Label at (x,y), null if none or outside.
+     */
+    public String labelAt(int x, int y) {
+        int i = indexAt(x, y);
+        return i < 0 ? null : names[i];
+    }
+
+    /**
+     * @param p The point, java.awt.Point is also a Point2D.
+     * @return Label at p, null if none or outside.
+     */
+    public String labelAt(Point2D p) {
+        return labelAt((int) Math.round(p.getX()), (int) Math.round(p.getY()));
+    }
+
+    /**
+     * Visit all horizontal runs of an area, top to bottom, left to right.
+     *
+     * @param i Label index.
+     * @param visitor Called for every run.
+     */
+    public void forEachSpan(int i, SpanVisitor visitor) {
+        Rectangle b = bounds[i];
+        for (int y = b.y; y < b.y + b.height; y++) {
+            int row = y * width;
+            int x = b.x;
+            int end = b.x + b.width;
+            while (x < end) {
+                if (labels[row + x] != i) {
+                    x++;
+                    continue;
+                }
+                int x0 = x;
+                while (x < end && labels[row + x] == i) {
+                    x++;
+                }
+                visitor.span(y, x0, x);
+            }
+        }
+    }
+
+    /**
+     * Visit all horizontal runs of an area.
+     *
+     * @param name The label.
+     * @param visitor Called for every run.
+     */
+    public void forEachSpan(String name, SpanVisitor visitor) {
+        int i = indexOf(name);
+        if (i >= 0) {
+            forEachSpan(i, visitor);
+        }
+    }
+
+    /**
+     * @param i Label index.
+     * @return The area as a BitShape.
+     */
+    public BitShape toBitShape(int i) {
+        final BitShape ret = new BitShape(width);
+        forEachSpan(i, new SpanVisitor() {
+            @Override
+            public void span(int y, int x0, int x1) {
+                ret.setSpan(x0, x1, y);
+            }
+        });
+        return ret;
+    }
+
+    /**
+     * @param i Label index.
+     * @return The area as a run length SpanShape.
+     */
+    public SpanShape toSpanShape(int i) {
+        final SpanShape ret = new SpanShape();
+        forEachSpan(i, new SpanVisitor() {
+            @Override
+            public void span(int y, int x0, int x1) {
+                ret.setSpan(x0, x1, y);
+            }
+        });
+        return ret;
+    }
+
+    /**
+     * @param name The label.
+     * @return The area as a BitShape, null if the label is unknown.
+     */
+    public BitShape toBitShape(String name) {
+        int i = indexOf(name);
+        return i < 0 ? null : toBitShape(i);
+    }
+
+    /**
+     * @return All areas as BitShapes.
+     */
+    public HashMap<String, BitShape> toBitShapes() {
+        HashMap<String, BitShape> ret = new HashMap<>();
+        for (int i = 0; i < names.length; i++) {
+            ret.put(names[i], toBitShape(i));
+        }
+        return ret;
+    }
+}
@@ -16,6 +16,11 @@ import java.io.IOException;
  */
 public class LabelledPoint extends Point implements Comparable<LabelledPoint> {
 
+    /**
+     * Radius of the circle that selects a point.
+     */
+    public static final int RADIUS = 15;
+
     public static Shape circle(double cx, double cy, double radius) {
         return circle(new Point2D.Double(cx, cy), radius);
     }
@@ -60,6 +65,8 @@ public class LabelledPoint extends Point implements Comparable<LabelledPoint> {
      */
     public final String label;
     private Shape shape = null;
+    private int shapeX;
+    private int shapeY;
 
     /**
      * Fetch from input stream (UTF, Y, X).
@@ -129,22 +136,29 @@ public class LabelledPoint extends Point implements Comparable<LabelledPoint> {
     /**
      * Return a small circle around the point.
      *
-     * @return circle with radius 15 around the point.
+     * @return circle with radius RADIUS around the point.
      */
     public synchronized final Shape getShape() {
-        if (null == shape) {
-            shape = circle(this, 15);
+        // the point may have been moved since, x and y are public
+        if (null == shape || shapeX != x || shapeY != y) {
+            shape = circle(this, RADIUS);
+            shapeX = x;
+            shapeY = y;
         }
         return shape;
     }
 
     /**
-     * Write to output stream (UTF, short Y, short X).
+     * Write to output stream (UTF, short Y, short X). For big images or many
+     * points use PointSetFile.
      *
      * @param out Data output stream.
-     * @throws IOException Whenever.
+     * @throws IOException Whenever, also if x or y do not fit in a short.
      */
     public void write(DataOutput out) throws IOException {
+        if (x != (short) x || y != (short) y) {
+            throw new IOException("Coordinates do not fit this format: " + this);
+        }
         out.writeUTF(label);
         out.writeShort(y);
         out.writeShort(x);
@@ -0,0 +1,339 @@
+package nl.infcomtec.simpleimage;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Loads big image files in parts.
+ * <p>
+ * First a coarse overview is decoded, skipping most pixels, so something can
+ * be shown right away. When the user zooms in, full resolution blocks are
+ * decoded as they become visible, using ImageReader regions and subsampling.
+ * Viewers have them decoded on the ImageScheduler with loadBlock() and show
+ * the overview until they arrive. Decoded blocks are kept in an LRU cache
+ * that viewers size with setView() to hold every visible block, so blocks
+ * do not push each other out and get decoded over and over.
+ * </p><p>
+ * Note that formats like PNG are stored sequentially, decoding a block near
+ * the bottom still means inflating everything above it, but without keeping
+ * it.
+ * </p>
+ *
+ * @author Walter Stroebel
+ */
+public class LazyImageLoader {
+
+    /**
+     * Files with more pixels than this are loaded lazily by ImageViewer.
+     */
+    public static final long LAZY_PIXELS = 16L * 1024 * 1024;
+    /**
+     * Default size of the overview in pixels.
+     */
+    public static final long OVERVIEW_PIXELS = 2L * 1024 * 1024;
+    /**
+     * Size of a decoded block, in pixels of the block image.
+     */
+    public static final int BLOCK = 1024;
+    /**
+     * Minimum number of blocks to cache, 4MB each.
+     */
+    public static final int MAX_BLOCKS = 16;
+    /**
+     * Share of the maximum heap the blocks may take, however many are
+     * visible.
+     */
+    private static final long MAX_BLOCK_BYTES = Runtime.getRuntime().maxMemory() / 4;
+
+    /**
+     * Identifies a block.
+     */
+    private static final class Key {
+
+        final int sub;
+        final int bx;
+        final int by;
+
+        Key(int sub, int bx, int by) {
+            this.sub = sub;
+            this.bx = bx;
+            this.by = by;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return k.sub == sub && k.bx == bx && k.by == by;
+        }
+
+        @Override
+        public int hashCode() {
+            return (31 * sub + bx) * 31 + by;
+        }
+    }
+
+    private final File file;
+    private final int width;
+    private final int height;
+    private int overviewSubsampling = 1;
+    private int capacity = MAX_BLOCKS;
+    /**
+     * The blocks last passed to setView(), and their subsampling.
+     */
+    private Rectangle view = new Rectangle();
+    private int viewSub = 0;
+    private final LinkedHashMap<Key, BufferedImage> blocks = new LinkedHashMap<Key, BufferedImage>(32, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, BufferedImage> eldest) {
+            return size() > capacity;
+        }
+    };
+    /**
+     * Blocks being decoded by loadBlock().
+     */
+    private final HashSet<Key> loading = new HashSet<>();
+    /**
+     * Blocks that could not be decoded, not tried again.
+     */
+    private final HashSet<Key> failed = new HashSet<>();
+    /**
+     * Blocks loadBlock() decoded for the current view, not decoded again for
+     * it even if the cache dropped them.
+     */
+    private final HashSet<Key> loaded = new HashSet<>();
+
+    /**
+     * Read the image header.
+     *
+     * @param file The image file.
+     * @throws IOException If the file is not a readable image.
+     */
+    public LazyImageLoader(File file) throws IOException {
+        this.file = file;
+        ImageReader reader = open();
+        try {
+            width = reader.getWidth(0);
+            height = reader.getHeight(0);
+        } finally {
+            close(reader);
+        }
+    }
+
+    /**
+     * @return Full resolution width.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return Full resolution height.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return The subsampling used for the overview, 1 if not read yet.
+     */
+    public int getOverviewSubsampling() {
+        return overviewSubsampling;
+    }
+
+    /**
+     * Decode the whole image, skipping pixels.
+     *
+     * @param maxPixels Approximate upper limit for the size of the result.
+     * @return The overview.
+     * @throws IOException If decoding fails.
+     */
+    public BufferedImage readOverview(long maxPixels) throws IOException {
+        overviewSubsampling = Math.max(1, (int) Math.ceil(Math.sqrt((double) width * height / maxPixels)));
+        return read(new Rectangle(width, height), overviewSubsampling);
+    }
+
+    /**
+     * Decode part of the image.
+     *
+     * @param region The part, in full resolution pixels.
+     * @param subsampling Only every subsampling-th pixel and row is decoded.
+     * @return The decoded part.
+     * @throws IOException If decoding fails.
+     */
+    public BufferedImage read(Rectangle region, int subsampling) throws IOException {
+        ImageReader reader = open();
+        try {
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(region);
+            param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+            return reader.read(0, param);
+        } finally {
+            close(reader);
+        }
+    }
+
+    /**
+     * Get a cached block, decoding it if needed.
+     * <p>
+     * Block (bx, by) at subsampling sub covers the full resolution pixels from
+     * (bx, by) * BLOCK * sub, BLOCK * sub wide and high, clipped to the image.
+     * </p>
+     *
+     * @param sub Subsampling.
+     * @param bx Block column.
+     * @param by Block row.
+     * @return The block or null if it cannot be decoded.
+     */
+    public synchronized BufferedImage getBlock(int sub, int bx, int by) {
+        Key key = new Key(sub, bx, by);
+        BufferedImage ret = blocks.get(key);
+        if (null == ret) {
+            Rectangle r = getBlockRegion(sub, bx, by);
+            if (r.isEmpty()) {
+                return null;
+            }
+            try {
+                ret = read(r, sub);
+            } catch (IOException ex) {
+                return null;
+            }
+            blocks.put(key, ret);
+        }
+        return ret;
+    }
+
+    /**
+     * Get a block only if it is cached, this never decodes.
+     *
+     * @param sub Subsampling.
+     * @param bx Block column.
+     * @param by Block row.
+     * @return The block or null.
+     */
+    public synchronized BufferedImage getCachedBlock(int sub, int bx, int by) {
+        return blocks.get(new Key(sub, bx, by));
+    }
+
+    /**
+     * @param sub Subsampling.
+     * @param bx Block column.
+     * @param by Block row.
+     * @return The full resolution pixels of the block, clipped to the image.
+     */
+    public Rectangle getBlockRegion(int sub, int bx, int by) {
+        return new Rectangle(bx * BLOCK * sub, by * BLOCK * sub, BLOCK * sub, BLOCK * sub)
+                .intersection(new Rectangle(width, height));
+    }
+
+    /**
+     * Tell the loader what is shown, the cache is sized to hold all visible
+     * blocks plus a ring around them, within a quarter of the heap.
+     *
+     * @param sub Subsampling of the visible blocks.
+     * @param region Visible full resolution pixels.
+     */
+    public synchronized void setView(int sub, Rectangle region) {
+        int span = BLOCK * sub;
+        Rectangle r = region.intersection(new Rectangle(width, height));
+        Rectangle v = new Rectangle();
+        if (!r.isEmpty()) {
+            int bx0 = r.x / span;
+            int by0 = r.y / span;
+            v = new Rectangle(bx0, by0, (r.x + r.width - 1) / span - bx0 + 1, (r.y + r.height - 1) / span - by0 + 1);
+        }
+        if (sub == viewSub && v.equals(view)) {
+            return;
+        }
+        viewSub = sub;
+        view = v;
+        loaded.clear();
+        long need = (long) (v.width + 2) * (v.height + 2);
+        capacity = (int) Math.max(MAX_BLOCKS, Math.min(need, MAX_BLOCK_BYTES / (4L * BLOCK * BLOCK)));
+    }
+
+    /**
+     * @return The number of blocks the cache holds at most.
+     */
+    public synchronized int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Decode a block on the ImageScheduler, unless it is cached, already
+     * being decoded, already decoded for the current view or failed before.
+     *
+     * @param sub Subsampling.
+     * @param bx Block column.
+     * @param by Block row.
+     * @param done Run on the decoding thread once the block is cached.
+     */
+    public void loadBlock(int sub, int bx, int by, final Runnable done) {
+        final Key key = new Key(sub, bx, by);
+        final Rectangle r = getBlockRegion(sub, bx, by);
+        synchronized (this) {
+            if (r.isEmpty() || blocks.containsKey(key) || failed.contains(key) || loaded.contains(key)
+                    || !loading.add(key)) {
+                return;
+            }
+        }
+        ImageScheduler.submit(new ImageScheduler.Task<Void>() {
+            @Override
+            public Void run(ImageScheduler.Job<Void> job) {
+                BufferedImage block = null;
+                try {
+                    // not holding the lock, getCachedBlock() must stay fast
+                    block = read(r, key.sub);
+                } catch (IOException ex) {
+                    // left to the overview
+                }
+                synchronized (LazyImageLoader.this) {
+                    loading.remove(key);
+                    if (null == block) {
+                        failed.add(key);
+                        return null;
+                    }
+                    blocks.put(key, block);
+                    loaded.add(key);
+                }
+                done.run();
+                return null;
+            }
+        });
+    }
+
+    private ImageReader open() throws IOException {
+        ImageInputStream iis = ImageIO.createImageInputStream(file);
+        if (null == iis) {
+            throw new IOException("Cannot open " + file);
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+        if (!readers.hasNext()) {
+            iis.close();
+            throw new IOException("No reader for " + file);
+        }
+        ImageReader reader = readers.next();
+        reader.setInput(iis, true, true);
+        return reader;
+    }
+
+    private void close(ImageReader reader) throws IOException {
+        Object input = reader.getInput();
+        reader.dispose();
+        if (input instanceof ImageInputStream) {
+            ((ImageInputStream) input).close();
+        }
+    }
+}
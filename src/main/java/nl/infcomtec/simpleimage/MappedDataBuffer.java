@@ -0,0 +1,83 @@
+package nl.infcomtec.simpleimage;
+
+import java.awt.image.DataBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * DataBuffer of ints that lives outside the Java heap, in a memory mapped
+ * file or in direct buffers.
+ * <p>
+ * A single buffer can hold at most 2GB, so the data is split into chunks of
+ * CHUNK ints.
+ * </p>
+ *
+ * @author Walter Stroebel
+ */
+final class MappedDataBuffer extends DataBuffer {
+
+    /**
+     * Log2 of the number of ints per chunk (1GB).
+     */
+    static final int CHUNK_SHIFT = 28;
+    /**
+     * Number of ints per chunk.
+     */
+    static final int CHUNK = 1 << CHUNK_SHIFT;
+    private static final int MASK = CHUNK - 1;
+    private final IntBuffer[] chunks;
+
+    /**
+     * @param chunks The int buffers, all but the last must hold CHUNK ints.
+     * @param size Total number of ints.
+     */
+    MappedDataBuffer(IntBuffer[] chunks, int size) {
+        super(TYPE_INT, size);
+        this.chunks = chunks;
+    }
+
+    @Override
+    public int getElem(int bank, int i) {
+        return chunks[i >>> CHUNK_SHIFT].get(i & MASK);
+    }
+
+    @Override
+    public void setElem(int bank, int i, int val) {
+        chunks[i >>> CHUNK_SHIFT].put(i & MASK, val);
+    }
+
+    /**
+     * Bulk read, much faster than getElem per pixel.
+     *
+     * @param i Index of the first element.
+     * @param dst Destination array.
+     * @param ofs Offset in the destination.
+     * @param len Number of elements.
+     */
+    void get(int i, int[] dst, int ofs, int len) {
+        while (len > 0) {
+            int n = Math.min(len, CHUNK - (i & MASK));
+            chunks[i >>> CHUNK_SHIFT].get(i & MASK, dst, ofs, n);
+            i += n;
+            ofs += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Bulk write, much faster than setElem per pixel.
+     *
+     * @param i Index of the first element.
+     * @param src Source array.
+     * @param ofs Offset in the source.
+     * @param len Number of elements.
+     */
+    void put(int i, int[] src, int ofs, int len) {
+        while (len > 0) {
+            int n = Math.min(len, CHUNK - (i & MASK));
+            chunks[i >>> CHUNK_SHIFT].put(i & MASK, src, ofs, n);
+            i += n;
+            ofs += n;
+            len -= n;
+        }
+    }
+}
@@ -0,0 +1,389 @@
+package nl.infcomtec.simpleimage;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * ARGB images that are not stored on the Java heap.
+ * <p>
+ * A 16k x 16k image takes 1GB. Stored in a memory mapped temporary file such
+ * an image can be viewed with a small heap, the operating system pages in the
+ * parts that are actually looked at. The images are normal BufferedImages
+ * with a custom DataBuffer, so they work everywhere, but per pixel access is
+ * slower than for heap images. Read them in tiles with getTile().
+ * </p>
+ *
+ * @author Walter Stroebel
+ */
+public final class MappedImage {
+
+    /**
+     * Images with more pixels than this are read off-heap by read().
+     */
+    public static final long OFF_HEAP_PIXELS = 64L * 1024 * 1024;
+    /**
+     * Rows copied at a time when filling an image.
+     */
+    private static final int STRIPE = 256;
+
+    private MappedImage() {
+    }
+
+    /**
+     * Create an ARGB image in a memory mapped temporary file.
+     *
+     * @param w Width.
+     * @param h Height.
+     * @return The image, all pixels transparent black.
+     * @throws IOException If the temporary file cannot be created.
+     */
+    public static BufferedImage createMapped(int w, int h) throws IOException {
+        int size = size(w, h);
+        File tmp = File.createTempFile("mapped", ".argb");
+        tmp.deleteOnExit();
+        IntBuffer[] chunks = new IntBuffer[(int) ((size + (long) MappedDataBuffer.CHUNK - 1) / MappedDataBuffer.CHUNK)];
+        try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw"); FileChannel ch = raf.getChannel()) {
+            for (int i = 0; i < chunks.length; i++) {
+                long start = (long) i * MappedDataBuffer.CHUNK;
+                long len = Math.min(MappedDataBuffer.CHUNK, size - start);
+                chunks[i] = ch.map(FileChannel.MapMode.READ_WRITE, start * 4, len * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+            }
+        }
+        // the mapping stays valid, on most systems the file can go now
+        tmp.delete();
+        return wrap(new MappedDataBuffer(chunks, size), w, h);
+    }
+
+    /**
+     * Create an ARGB image in direct (native) memory.
+     *
+     * @param w Width.
+     * @param h Height.
+     * @return The image, all pixels transparent black.
+     */
+    public static BufferedImage createDirect(int w, int h) {
+        int size = size(w, h);
+        IntBuffer[] chunks = new IntBuffer[(int) ((size + (long) MappedDataBuffer.CHUNK - 1) / MappedDataBuffer.CHUNK)];
+        for (int i = 0; i < chunks.length; i++) {
+            long start = (long) i * MappedDataBuffer.CHUNK;
+            int len = (int) Math.min(MappedDataBuffer.CHUNK, size - start);
+            chunks[i] = ByteBuffer.allocateDirect(len * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+        }
+        return wrap(new MappedDataBuffer(chunks, size), w, h);
+    }
+
+    /**
+     * Allocate an ARGB image, off-heap if requested and big enough to matter.
+     *
+     * @param w Width.
+     * @param h Height.
+     * @param offHeap Prefer a memory mapped image.
+     * @return The image.
+     */
+    static BufferedImage allocate(int w, int h, boolean offHeap) {
+        if (offHeap && (long) w * h > OFF_HEAP_PIXELS / 16) {
+            try {
+                return createMapped(w, h);
+            } catch (IOException ex) {
+                // fall through, use the heap
+            }
+        }
+        return new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+    }
+
+    /**
+     * @param image Any image.
+     * @return true if the pixels of the image are not on the heap.
+     */
+    public static boolean isOffHeap(BufferedImage image) {
+        return image.getRaster().getDataBuffer() instanceof MappedDataBuffer;
+    }
+
+    /**
+     * Read ARGB pixels from an ARGB image, fast for both heap and off-heap
+     * images.
+     *
+     * @param image The image.
+     * @param x Left.
+     * @param y Top.
+     * @param w Width.
+     * @param h Height.
+     * @param pixels Destination, row by row, at least w * h.
+     */
+    static void getPixels(BufferedImage image, int x, int y, int w, int h, int[] pixels) {
+        getPixels(image, x, y, w, h, pixels, 0);
+    }
+
+    /**
+     * Read ARGB pixels from an ARGB image into part of an array.
+     *
+     * @param image The image.
+     * @param x Left.
+     * @param y Top.
+     * @param w Width.
+     * @param h Height.
+     * @param pixels Destination, row by row.
+     * @param offset Index in pixels of the first pixel.
+     */
+    static void getPixels(BufferedImage image, int x, int y, int w, int h, int[] pixels, int offset) {
+        int iw = image.getWidth();
+        if (image.getRaster().getDataBuffer() instanceof MappedDataBuffer) {
+            MappedDataBuffer db = (MappedDataBuffer) image.getRaster().getDataBuffer();
+            for (int r = 0; r < h; r++) {
+                db.get((y + r) * iw + x, pixels, offset + r * w, w);
+            }
+        } else if (0 != offset) {
+            int[] row = new int[w];
+            for (int r = 0; r < h; r++) {
+                image.getRaster().getDataElements(x, y + r, w, 1, row);
+                System.arraycopy(row, 0, pixels, offset + r * w, w);
+            }
+        } else {
+            image.getRaster().getDataElements(x, y, w, h, pixels);
+        }
+    }
+
+    /**
+     * Write ARGB pixels to an ARGB image, fast for both heap and off-heap
+     * images.
+     *
+     * @param image The image.
+     * @param x Left.
+     * @param y Top.
+     * @param w Width.
+     * @param h Height.
+     * @param pixels Source, row by row, at least w * h.
+     */
+    static void setPixels(BufferedImage image, int x, int y, int w, int h, int[] pixels) {
+        setPixels(image, x, y, w, h, pixels, 0);
+    }
+
+    /**
+     * Write ARGB pixels from part of an array to an ARGB image.
+     *
+     * @param image The image.
+     * @param x Left.
+     * @param y Top.
+     * @param w Width.
+     * @param h Height.
+     * @param pixels Source, row by row.
+     * @param offset Index in pixels of the first pixel.
+     */
+    static void setPixels(BufferedImage image, int x, int y, int w, int h, int[] pixels, int offset) {
+        int iw = image.getWidth();
+        if (image.getRaster().getDataBuffer() instanceof MappedDataBuffer) {
+            MappedDataBuffer db = (MappedDataBuffer) image.getRaster().getDataBuffer();
+            for (int r = 0; r < h; r++) {
+                db.put((y + r) * iw + x, pixels, offset + r * w, w);
+            }
+        } else if (0 != offset) {
+            int[] row = new int[w];
+            for (int r = 0; r < h; r++) {
+                System.arraycopy(pixels, offset + r * w, row, 0, w);
+                image.getRaster().setDataElements(x, y + r, w, 1, row);
+            }
+        } else {
+            image.getRaster().setDataElements(x, y, w, h, pixels);
+        }
+    }
+
+    /**
+     * Copy an image, off-heap images to off-heap memory.
+     *
+     * @param src The image.
+     * @return An ARGB copy.
+     */
+    static BufferedImage copy(BufferedImage src) {
+        BufferedImage ret = allocate(src.getWidth(), src.getHeight(), isOffHeap(src));
+        copyRegion(src, ret, new Rectangle(src.getWidth(), src.getHeight()));
+        return ret;
+    }
+
+    /**
+     * Copy pixels between two images at the same position.
+     *
+     * @param src The source image.
+     * @param dst The ARGB destination.
+     * @param r The pixels, clipped to both images.
+     */
+    static void copyRegion(final BufferedImage src, final BufferedImage dst, Rectangle r) {
+        final Rectangle c = r.intersection(new Rectangle(src.getWidth(), src.getHeight()))
+                .intersection(new Rectangle(dst.getWidth(), dst.getHeight()));
+        if (c.isEmpty()) {
+            return;
+        }
+        final boolean argb = src.getType() == BufferedImage.TYPE_INT_ARGB || isOffHeap(src);
+        ImageScheduler.forRows(c.height, 64, new ImageScheduler.Rows() {
+            @Override
+            public void rows(int y0, int y1) {
+                int[] band = new int[c.width * (y1 - y0)];
+                if (argb) {
+                    getPixels(src, c.x, c.y + y0, c.width, y1 - y0, band);
+                } else {
+                    src.getRGB(c.x, c.y + y0, c.width, y1 - y0, band, 0, c.width);
+                }
+                setPixels(dst, c.x, c.y + y0, c.width, y1 - y0, band);
+            }
+        });
+    }
+
+    /**
+     * Direct access to the pixels of a heap image with packed int ARGB or RGB
+     * pixels.
+     *
+     * @param image The image.
+     * @return The pixel array, row by row, or null if the image is of another
+     * type or a sub-image.
+     */
+    static int[] intPixels(BufferedImage image) {
+        int type = image.getType();
+        if (type != BufferedImage.TYPE_INT_ARGB && type != BufferedImage.TYPE_INT_RGB) {
+            return null;
+        }
+        WritableRaster raster = image.getRaster();
+        if (raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0
+                || raster.getDataBuffer().getSize() != raster.getWidth() * raster.getHeight()) {
+            return null;
+        }
+        return ((DataBufferInt) raster.getDataBuffer()).getData();
+    }
+
+    /**
+     * Copy a part of an image to the heap.
+     *
+     * @param image The source image.
+     * @param r The part to copy, clipped to the image.
+     * @return A TYPE_INT_ARGB image of the part.
+     */
+    public static BufferedImage getTile(BufferedImage image, Rectangle r) {
+        Rectangle c = r.intersection(new Rectangle(image.getWidth(), image.getHeight()));
+        BufferedImage ret = new BufferedImage(Math.max(1, c.width), Math.max(1, c.height), BufferedImage.TYPE_INT_ARGB);
+        if (c.isEmpty()) {
+            return ret;
+        }
+        int[] row = new int[c.width * Math.min(STRIPE, c.height)];
+        for (int y = 0; y < c.height; y += STRIPE) {
+            int rows = Math.min(STRIPE, c.height - y);
+            getPixels(image, c.x, c.y + y, c.width, rows, row);
+            ret.getRaster().setDataElements(0, y, c.width, rows, row);
+        }
+        return ret;
+    }
+
+    /**
+     * Read an image file, off-heap if it is big.
+     * <p>
+     * RGB and RGBA images are decoded straight into the mapped image. Other
+     * formats are decoded on the heap first and then copied, which still
+     * avoids keeping two copies around.
+     * </p>
+     *
+     * @param f The file.
+     * @return The image.
+     * @throws IOException If the file cannot be read.
+     */
+    public static BufferedImage read(File f) throws IOException {
+        if (Qoi.isQoi(f)) {
+            return Qoi.read(f);
+        }
+        try (ImageInputStream iis = ImageIO.createImageInputStream(f)) {
+            if (null == iis) {
+                throw new IOException("Cannot open " + f);
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                throw new IOException("No reader for " + f);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                int w = reader.getWidth(0);
+                int h = reader.getHeight(0);
+                if ((long) w * h <= OFF_HEAP_PIXELS) {
+                    return reader.read(0);
+                }
+                BufferedImage dst = createMapped(w, h);
+                ImageTypeSpecifier raw = reader.getRawImageType(0);
+                int bands = null == raw ? 0 : raw.getSampleModel().getNumBands();
+                boolean bytes = null != raw && raw.getSampleModel().getDataType() == DataBuffer.TYPE_BYTE
+                        && !(raw.getColorModel() instanceof IndexColorModel);
+                if (bytes && (bands == 4 || bands == 3)) {
+                    ImageReadParam param = reader.getDefaultReadParam();
+                    param.setDestination(dst);
+                    if (bands == 3) {
+                        param.setDestinationBands(new int[]{0, 1, 2});
+                    }
+                    reader.read(0, param);
+                    if (bands == 3) {
+                        setOpaque(dst);
+                    }
+                } else {
+                    copy(reader.read(0), dst);
+                }
+                return dst;
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static int size(int w, int h) {
+        long size = (long) w * h;
+        if (w <= 0 || h <= 0 || size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Unsupported image size " + w + "x" + h);
+        }
+        return (int) size;
+    }
+
+    private static BufferedImage wrap(MappedDataBuffer db, int w, int h) {
+        ColorModel cm = ColorModel.getRGBdefault();
+        SinglePixelPackedSampleModel sm = new SinglePixelPackedSampleModel(DataBuffer.TYPE_INT, w, h,
+                new int[]{0xFF0000, 0xFF00, 0xFF, 0xFF000000});
+        WritableRaster raster = Raster.createWritableRaster(sm, db, new Point());
+        return new BufferedImage(cm, raster, false, null);
+    }
+
+    private static void setOpaque(BufferedImage image) {
+        MappedDataBuffer db = (MappedDataBuffer) image.getRaster().getDataBuffer();
+        int w = image.getWidth();
+        int[] row = new int[w];
+        for (int y = 0; y < image.getHeight(); y++) {
+            db.get(y * w, row, 0, w);
+            for (int x = 0; x < w; x++) {
+                row[x] |= 0xFF000000;
+            }
+            db.put(y * w, row, 0, w);
+        }
+    }
+
+    private static void copy(BufferedImage src, BufferedImage dst) {
+        int w = src.getWidth();
+        int[] rows = new int[w * STRIPE];
+        for (int y = 0; y < src.getHeight(); y += STRIPE) {
+            int n = Math.min(STRIPE, src.getHeight() - y);
+            src.getRGB(0, y, w, n, rows, 0, w);
+            setPixels(dst, 0, y, w, n, rows);
+        }
+    }
+}
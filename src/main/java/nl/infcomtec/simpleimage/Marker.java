@@ -1,8 +1,8 @@
 package nl.infcomtec.simpleimage;
 
 import java.awt.Graphics2D;
-import java.awt.Point;
 import java.awt.image.BufferedImage;
+import java.util.List;
 
 /**
  * Mark pixels in an image.
@@ -11,7 +11,11 @@ import java.awt.image.BufferedImage;
  */
 public class Marker {
 
-    private final BitShape mark;
+    /**
+     * Rows per parallel task.
+     */
+    private static final int ROWS = 64;
+    private final PixelShape mark;
     private final int markMask;
     private final int markColor;
 
@@ -22,7 +26,7 @@ public class Marker {
      * @param markMask Bits to mask from the existing color.
      * @param markColor Bits to add to the existing color.
      */
-    public Marker(BitShape mark, int markMask, int markColor) {
+    public Marker(PixelShape mark, int markMask, int markColor) {
         this.mark = mark;
         this.markMask = markMask;
         this.markColor = markColor;
@@ -34,9 +38,121 @@ public class Marker {
      * @param image image to mark (destructive).
      */
     public void mark(BufferedImage image) {
-        for (Point p : mark) {
-            int c = image.getRGB(p.x, p.y) & markMask;
-            image.setRGB(p.x, p.y, c | markColor);
+        mark(image, 0, 0, null);
+    }
+
+    /**
+     * Apply the marker to part of an image.
+     *
+     * @param image image to mark (destructive).
+     * @param ofsX X coordinate of the image in the marker.
+     * @param ofsY Y coordinate of the image in the marker.
+     */
+    public void mark(BufferedImage image, int ofsX, int ofsY) {
+        mark(image, ofsX, ofsY, null);
+    }
+
+    /**
+     * Apply many markers in one pass over an image, in the order given.
+     * <p>
+     * Each band of rows gets all markers while it is in the cache, instead of
+     * going over the whole image once per marker.
+     * </p>
+     *
+     * @param image image to mark (destructive).
+     * @param markers The markers.
+     * @param ofsX X coordinate of the image in the markers.
+     * @param ofsY Y coordinate of the image in the markers.
+     */
+    public static void markAll(BufferedImage image, List<Marker> markers, int ofsX, int ofsY) {
+        markAll(image, markers.toArray(new Marker[markers.size()]), ofsX, ofsY, null);
+    }
+
+    /**
+     * Bands of rows in parallel, the spans of the shapes are applied to the
+     * pixel array directly when possible.
+     */
+    private static void markAll(final BufferedImage image, final Marker[] markers, final int ofsX, final int ofsY,
+            ImageScheduler.Job<?> job) {
+        if (markers.length == 0) {
+            return;
+        }
+        final int w = image.getWidth();
+        final int[] pixels = MappedImage.intPixels(image);
+        final boolean offHeap = MappedImage.isOffHeap(image);
+        ImageScheduler.forRows(image.getHeight(), ROWS, new ImageScheduler.Rows() {
+            @Override
+            public void rows(int y0, int y1) {
+                // one visitor and buffer per band, nothing per pixel
+                Band band = new Band(image, pixels, offHeap, w, ofsX, ofsY);
+                for (Marker m : markers) {
+                    band.marker = m;
+                    m.mark.forEachSpan(y0 + ofsY, y1 + ofsY, band);
+                }
+            }
+        }, job);
+    }
+
+    private void mark(BufferedImage image, int ofsX, int ofsY, ImageScheduler.Job<?> job) {
+        markAll(image, new Marker[]{this}, ofsX, ofsY, job);
+    }
+
+    /**
+     * Applies the spans of a marker to one band of an image.
+     */
+    private static class Band implements SpanVisitor {
+
+        final BufferedImage image;
+        final int[] pixels;
+        final boolean offHeap;
+        final int w;
+        final int ofsX;
+        final int ofsY;
+        Marker marker;
+        int[] buf;
+
+        Band(BufferedImage image, int[] pixels, boolean offHeap, int w, int ofsX, int ofsY) {
+            this.image = image;
+            this.pixels = pixels;
+            this.offHeap = offHeap;
+            this.w = w;
+            this.ofsX = ofsX;
+            this.ofsY = ofsY;
+        }
+
+        @Override
+        public void span(int my, int mx0, int mx1) {
+            int x0 = Math.max(0, mx0 - ofsX);
+            int x1 = Math.min(w, mx1 - ofsX);
+            if (x0 >= x1) {
+                return;
+            }
+            int y = my - ofsY;
+            int mask = marker.markMask;
+            int color = marker.markColor;
+            if (null != pixels) {
+                for (int i = y * w + x0, end = y * w + x1; i < end; i++) {
+                    pixels[i] = (pixels[i] & mask) | color;
+                }
+                return;
+            }
+            int n = x1 - x0;
+            if (null == buf || buf.length < n) {
+                buf = new int[w];
+            }
+            if (offHeap) {
+                MappedImage.getPixels(image, x0, y, n, 1, buf);
+            } else {
+                image.getRGB(x0, y, n, 1, buf, 0, n);
+            }
+            for (int i = 0; i < n; i++) {
+                buf[i] = (buf[i] & mask) | color;
+            }
+            if (offHeap) {
+                MappedImage.setPixels(image, x0, y, n, 1, buf);
+            } else {
+                image.setRGB(x0, y, n, 1, buf, 0, n);
+            }
         }
     }
 
@@ -57,4 +173,24 @@ public class Marker {
         return ret;
     }
 
+    /**
+     * Apply the marker to a copy of an image in the background.
+     *
+     * @param image image to mark (non-destructive).
+     * @return The job, its result is the marked image.
+     */
+    public ImageScheduler.Job<BufferedImage> markCopyAsync(final BufferedImage image) {
+        return ImageScheduler.submit(new ImageScheduler.Task<BufferedImage>() {
+            @Override
+            public BufferedImage run(ImageScheduler.Job<BufferedImage> job) {
+                BufferedImage ret = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB);
+                Graphics2D gr = ret.createGraphics();
+                gr.drawImage(image, 0, 0, null);
+                gr.dispose();
+                mark(ret, 0, 0, job);
+                return ret;
+            }
+        });
+    }
+
 }
@@ -0,0 +1,132 @@
+package nl.infcomtec.simpleimage;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+
+/**
+ * Builds the levels of a mipmap pyramid.
+ * <p>
+ * Each level is half the width and height of the previous one, every pixel is
+ * the alpha weighted average of a 2x2 block. Rows are done in parallel on
+ * the ImageScheduler. The rasters are accessed a row at a time, so the source
+ * image stays managed (accelerated) and off-heap images are read in bulk.
+ * </p>
+ *
+ * @author Walter Stroebel
+ */
+final class Mipmaps {
+
+    /**
+     * Rows per parallel task.
+     */
+    private static final int ROWS = 32;
+
+    private Mipmaps() {
+    }
+
+    /**
+     * Pick the level to sample from: the smallest level that is still at
+     * least as big as the target.
+     *
+     * @param scale Display scale relative to the full image.
+     * @return The level, 0 is the full image.
+     */
+    static int levelFor(double scale) {
+        if (scale >= 1) {
+            return 0;
+        }
+        return (int) Math.floor(Math.log(1 / scale) / Math.log(2));
+    }
+
+    /**
+     * Compute the next level.
+     *
+     * @param src The previous level, ARGB.
+     * @param offHeap Put big levels in a memory mapped image.
+     * @return An image of half the size, rounded up.
+     */
+    static BufferedImage halve(final BufferedImage src, boolean offHeap) {
+        final int sw = src.getWidth();
+        final int sh = src.getHeight();
+        final int dw = (sw + 1) / 2;
+        final int dh = (sh + 1) / 2;
+        final BufferedImage dst = MappedImage.allocate(dw, dh, offHeap);
+        ImageScheduler.forRows(dh, ROWS, new ImageScheduler.Rows() {
+            @Override
+            public void rows(int y0, int y1) {
+                Mipmaps.rows(src, dst, 0, dw, y0, y1);
+            }
+        });
+        return dst;
+    }
+
+    /**
+     * Recompute the part of a level that depends on a changed region of the
+     * previous level.
+     *
+     * @param src The previous level, ARGB.
+     * @param dst The level made from it by halve().
+     * @param region The changed part of src.
+     * @return The changed part of dst, to pass on to the next level.
+     */
+    static Rectangle update(final BufferedImage src, final BufferedImage dst, Rectangle region) {
+        Rectangle r = region.intersection(new Rectangle(src.getWidth(), src.getHeight()));
+        if (r.isEmpty()) {
+            return new Rectangle();
+        }
+        final int x0 = r.x / 2;
+        final int x1 = (r.x + r.width + 1) / 2;
+        final int y0 = r.y / 2;
+        int y1 = (r.y + r.height + 1) / 2;
+        ImageScheduler.forRows(y1 - y0, ROWS, new ImageScheduler.Rows() {
+            @Override
+            public void rows(int from, int to) {
+                Mipmaps.rows(src, dst, x0, x1, y0 + from, y0 + to);
+            }
+        });
+        return new Rectangle(x0, y0, x1 - x0, y1 - y0);
+    }
+
+    private static void rows(BufferedImage src, BufferedImage dst, int x0, int x1, int y0, int y1) {
+        int sw = src.getWidth();
+        int sh = src.getHeight();
+        // source columns sx0 up to and including sx1
+        int sx0 = x0 * 2;
+        int sx1 = Math.min(x1 * 2, sw) - 1;
+        int n = sx1 - sx0 + 1;
+        int[] in = new int[n * 2];
+        int[] out = new int[x1 - x0];
+        for (int y = y0; y < y1; y++) {
+            int sy = y * 2;
+            int rows = Math.min(2, sh - sy);
+            MappedImage.getPixels(src, sx0, sy, n, rows, in);
+            if (rows == 1) {
+                System.arraycopy(in, 0, in, n, n);
+            }
+            for (int x = x0; x < x1; x++) {
+                int i0 = x * 2 - sx0;
+                int i1 = Math.min(i0 + 1, n - 1);
+                out[x - x0] = average(in[i0], in[i1], in[n + i0], in[n + i1]);
+            }
+            MappedImage.setPixels(dst, x0, y, x1 - x0, 1, out);
+        }
+    }
+
+    /**
+     * Alpha weighted average, so transparent pixels do not bleed their color.
+     */
+    private static int average(int p0, int p1, int p2, int p3) {
+        int a0 = p0 >>> 24;
+        int a1 = p1 >>> 24;
+        int a2 = p2 >>> 24;
+        int a3 = p3 >>> 24;
+        int sa = a0 + a1 + a2 + a3;
+        if (sa == 0) {
+            return 0;
+        }
+        int r = (((p0 >> 16) & 0xFF) * a0 + ((p1 >> 16) & 0xFF) * a1 + ((p2 >> 16) & 0xFF) * a2 + ((p3 >> 16) & 0xFF) * a3) / sa;
+        int g = (((p0 >> 8) & 0xFF) * a0 + ((p1 >> 8) & 0xFF) * a1 + ((p2 >> 8) & 0xFF) * a2 + ((p3 >> 8) & 0xFF) * a3) / sa;
+        int b = ((p0 & 0xFF) * a0 + (p1 & 0xFF) * a1 + (p2 & 0xFF) * a2 + (p3 & 0xFF) * a3) / sa;
+        return ((sa >> 2) << 24) | (r << 16) | (g << 8) | b;
+    }
+}
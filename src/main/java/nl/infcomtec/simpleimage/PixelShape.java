@@ -0,0 +1,47 @@
+package nl.infcomtec.simpleimage;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.geom.Point2D;
+
+/**
+ * A set of pixels, as held by BitShape and SpanShape.
+ *
+ * @author Walter Stroebel
+ */
+public interface PixelShape extends Iterable<Point> {
+
+    /**
+     * @param x
+     * @param y
+     * @return true if (x,y) is inside the shape.
+     */
+    boolean contains(int x, int y);
+
+    /**
+     * @param p The point, java.awt.Point is also a Point2D.
+     * @return true if p is inside the shape.
+     */
+    boolean contains(Point2D p);
+
+    /**
+     * @return The smallest rectangle holding all pixels, empty if none.
+     */
+    Rectangle getBounds();
+
+    /**
+     * Visit all horizontal runs, top to bottom, left to right.
+     *
+     * @param visitor Called for every run.
+     */
+    void forEachSpan(SpanVisitor visitor);
+
+    /**
+     * Visit the horizontal runs in some rows.
+     *
+     * @param y0 First row.
+     * @param y1 Last row plus one.
+     * @param visitor Called for every run.
+     */
+    void forEachSpan(int y0, int y1, SpanVisitor visitor);
+}
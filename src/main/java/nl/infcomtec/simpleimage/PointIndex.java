@@ -0,0 +1,169 @@
+package nl.infcomtec.simpleimage;
+
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Uniform grid over LabelledPoints, to find the points near a position or in
+ * a rectangle without looking at all of them.
+ * <p>
+ * The points are mutable, call update() after moving one. Points are kept by
+ * identity, LabelledPoint equality is that of java.awt.Point.
+ * </p>
+ *
+ * @author Walter Stroebel
+ */
+public class PointIndex {
+
+    /**
+     * Cell size in image pixels.
+     */
+    public static final int CELL = 64;
+    private final HashMap<Long, ArrayList<LabelledPoint>> cells = new HashMap<>();
+    private final IdentityHashMap<LabelledPoint, Long> where = new IdentityHashMap<>();
+
+    private static long key(int cx, int cy) {
+        return ((long) cx << 32) | (cy & 0xFFFFFFFFL);
+    }
+
+    private static int cell(double v) {
+        return (int) Math.floor(v / CELL);
+    }
+
+    /**
+     * @param p A point to add.
+     */
+    public synchronized void add(LabelledPoint p) {
+        if (where.containsKey(p)) {
+            update(p);
+            return;
+        }
+        long k = key(cell(p.x), cell(p.y));
+        where.put(p, k);
+        ArrayList<LabelledPoint> list = cells.get(k);
+        if (null == list) {
+            list = new ArrayList<>();
+            cells.put(k, list);
+        }
+        list.add(p);
+    }
+
+    /**
+     * @param p A point to remove.
+     * @return true if it was in the index.
+     */
+    public synchronized boolean remove(LabelledPoint p) {
+        Long k = where.remove(p);
+        if (null == k) {
+            return false;
+        }
+        ArrayList<LabelledPoint> list = cells.get(k);
+        for (int i = 0; i < list.size(); i++) {
+            if (list.get(i) == p) {
+                list.remove(i);
+                break;
+            }
+        }
+        if (list.isEmpty()) {
+            cells.remove(k);
+        }
+        return true;
+    }
+
+    /**
+     * Move a point to the right cell after its coordinates changed.
+     *
+     * @param p The point.
+     */
+    public synchronized void update(LabelledPoint p) {
+        Long k = where.get(p);
+        if (null == k || k != key(cell(p.x), cell(p.y))) {
+            remove(p);
+            add(p);
+        }
+    }
+
+    /**
+     * @return Number of points.
+     */
+    public synchronized int size() {
+        return where.size();
+    }
+
+    /**
+     * Forget all points.
+     */
+    public synchronized void clear() {
+        cells.clear();
+        where.clear();
+    }
+
+    /**
+     * Find the points in a rectangle.
+     *
+     * @param r The rectangle in image pixels.
+     * @param into Points with x,y inside r are added to this.
+     * @return into, for chaining.
+     */
+    public synchronized List<LabelledPoint> query(Rectangle2D r, List<LabelledPoint> into) {
+        int cx0 = cell(r.getMinX());
+        int cx1 = cell(r.getMaxX());
+        int cy0 = cell(r.getMinY());
+        int cy1 = cell(r.getMaxY());
+        if ((long) (cx1 - cx0 + 1) * (cy1 - cy0 + 1) > cells.size()) {
+            // a big rectangle, cheaper to go over the cells that exist
+            for (ArrayList<LabelledPoint> list : cells.values()) {
+                addInside(list, r, into);
+            }
+        } else {
+            for (int cy = cy0; cy <= cy1; cy++) {
+                for (int cx = cx0; cx <= cx1; cx++) {
+                    ArrayList<LabelledPoint> list = cells.get(key(cx, cy));
+                    if (null != list) {
+                        addInside(list, r, into);
+                    }
+                }
+            }
+        }
+        return into;
+    }
+
+    private static void addInside(ArrayList<LabelledPoint> list, Rectangle2D r, List<LabelledPoint> into) {
+        for (LabelledPoint p : list) {
+            if (p.x >= r.getMinX() && p.x <= r.getMaxX() && p.y >= r.getMinY() && p.y <= r.getMaxY()) {
+                into.add(p);
+            }
+        }
+    }
+
+    /**
+     * Find the point that selects a position, the nearest if several do.
+     *
+     * @param pos A position in image pixels, for instance from the mouse.
+     * @param radius Points further away than this cannot select pos.
+     * @return The point or null.
+     */
+    public synchronized LabelledPoint pick(Point2D pos, double radius) {
+        LabelledPoint ret = null;
+        double best = Double.MAX_VALUE;
+        for (int cy = cell(pos.getY() - radius); cy <= cell(pos.getY() + radius); cy++) {
+            for (int cx = cell(pos.getX() - radius); cx <= cell(pos.getX() + radius); cx++) {
+                ArrayList<LabelledPoint> list = cells.get(key(cx, cy));
+                if (null != list) {
+                    for (LabelledPoint p : list) {
+                        double d = p.distanceSq(pos);
+                        if (d < best && p.selects(pos)) {
+                            best = d;
+                            ret = p;
+                        }
+                    }
+                }
+            }
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,464 @@
+package nl.infcomtec.simpleimage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Binary file format for sets of LabelledPoints.
+ * <p>
+ * The file is a header followed by blocks. Each block holds a table of the
+ * distinct labels in the block and then three int columns: x, y and the index
+ * of the label. Reading maps the columns into memory, nothing is parsed per
+ * point, only the label indices are checked. Appending writes a new block
+ * after the counted ones, existing data is not touched.
+ * </p><p>
+ * Layout, all big endian:
+ * <pre>
+ * header: int MAGIC, int VERSION, long total number of points
+ * block:  int BLOCK_MAGIC, int n, int labels,
+ *         per label: int length, UTF-8 bytes, padded to a multiple of 4,
+ *         int[n] x, int[n] y, int[n] label index
+ * </pre>
+ * </p>
+ *
+ * @author Walter Stroebel
+ */
+public final class PointSetFile {
+
+    /**
+     * "CLPT".
+     */
+    public static final int MAGIC = 0x434C5054;
+    public static final int VERSION = 1;
+    /**
+     * "BLCK".
+     */
+    public static final int BLOCK_MAGIC = 0x424C434B;
+    private static final int HEADER = 16;
+    /**
+     * Points per block written by an Appender.
+     */
+    public static final int BLOCK_POINTS = 1 << 20;
+
+    private PointSetFile() {
+    }
+
+    /**
+     * Write a point set, replacing the file.
+     *
+     * @param f The file.
+     * @param points The points.
+     * @throws IOException Whenever.
+     */
+    public static void write(File f, Collection<? extends LabelledPoint> points) throws IOException {
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeHeader(ch, 0);
+            long total = writeBlock(ch, points);
+            writeHeader(ch, total);
+        }
+    }
+
+    /**
+     * Add points to the end of a file, creating it if needed.
+     *
+     * @param f The file.
+     * @param points The points.
+     * @throws IOException Whenever.
+     */
+    public static void append(File f, Collection<? extends LabelledPoint> points) throws IOException {
+        try (Appender app = new Appender(f)) {
+            app.addAll(points);
+        }
+    }
+
+    /**
+     * Map a point set file.
+     *
+     * @param f The file.
+     * @return The points, backed by the file.
+     * @throws IOException If the file is not a point set.
+     */
+    public static PointSet map(File f) throws IOException {
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer hdr = read(ch, 0, HEADER);
+            if (hdr.getInt() != MAGIC) {
+                throw new IOException("Not a point set: " + f);
+            }
+            int version = hdr.getInt();
+            if (version > VERSION) {
+                throw new IOException("Point set version " + version + " is too new: " + f);
+            }
+            long total = hdr.getLong();
+            if (total < 0 || total > Integer.MAX_VALUE) {
+                throw new IOException("Corrupt point set, " + total + " points: " + f);
+            }
+            long size = ch.size();
+            PointSet ret = new PointSet();
+            long pos = HEADER;
+            // a block after the counted ones is from an interrupted append
+            while (ret.size() < total) {
+                BlockHead bh = readBlockHead(ch, pos, size, total - ret.size(), f);
+                int n = bh.n;
+                pos = bh.columns;
+                if (n > 0) {
+                    ByteBuffer cols = ch.map(FileChannel.MapMode.READ_ONLY, pos, 12L * n);
+                    IntBuffer all = cols.asIntBuffer();
+                    IntBuffer l = slice(all, 2 * n, n);
+                    for (int i = 0; i < n; i++) {
+                        int li = l.get(i);
+                        if (li < 0 || li >= bh.labels.length) {
+                            throw new IOException("Corrupt point set, label " + li + " at " + pos + ": " + f);
+                        }
+                    }
+                    ret.addBlock(n, bh.labels, slice(all, 0, n), slice(all, n, n), l);
+                }
+                pos += 12L * n;
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * Size and labels of a block.
+     */
+    private static final class BlockHead {
+
+        int n;
+        String[] labels;
+        /**
+         * Position of the columns.
+         */
+        long columns;
+    }
+
+    /**
+     * Read the start of a block, checking it against the file.
+     *
+     * @param pos Position of the block.
+     * @param size Size of the file.
+     * @param left Points the header still counts.
+     * @throws IOException If the block does not fit.
+     */
+    private static BlockHead readBlockHead(FileChannel ch, long pos, long size, long left, File f)
+            throws IOException {
+        if (pos + 12 > size) {
+            throw new IOException("Point set is truncated at " + pos + ": " + f);
+        }
+        ByteBuffer bh = read(ch, pos, 12);
+        if (bh.getInt() != BLOCK_MAGIC) {
+            throw new IOException("Corrupt point set at " + pos + ": " + f);
+        }
+        BlockHead ret = new BlockHead();
+        ret.n = bh.getInt();
+        int nLabels = bh.getInt();
+        pos += 12;
+        if (ret.n < 0 || ret.n > left || nLabels < 0 || nLabels > (size - pos) / 4) {
+            throw new IOException("Corrupt point set at " + pos + ": " + f);
+        }
+        ret.labels = new String[nLabels];
+        for (int i = 0; i < nLabels; i++) {
+            if (pos + 4 > size) {
+                throw new IOException("Point set is truncated at " + pos + ": " + f);
+            }
+            int len = read(ch, pos, 4).getInt();
+            if (len < 0 || pos + 4 + ((len + 3L) & ~3L) > size) {
+                throw new IOException("Corrupt point set at " + pos + ": " + f);
+            }
+            ret.labels[i] = new String(read(ch, pos + 4, len).array(), StandardCharsets.UTF_8);
+            pos += 4 + pad(len);
+        }
+        if (pos + 12L * ret.n > size) {
+            throw new IOException("Point set is truncated at " + pos + ": " + f);
+        }
+        ret.columns = pos;
+        return ret;
+    }
+
+    private static IntBuffer slice(IntBuffer b, int from, int n) {
+        IntBuffer d = b.duplicate();
+        d.position(from);
+        d.limit(from + n);
+        return d.slice();
+    }
+
+    private static int pad(int len) {
+        return (len + 3) & ~3;
+    }
+
+    private static ByteBuffer read(FileChannel ch, long pos, int len) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(len);
+        while (b.hasRemaining()) {
+            if (ch.read(b, pos + b.position()) < 0) {
+                throw new IOException("Unexpected end of point set");
+            }
+        }
+        b.flip();
+        return b;
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer b) throws IOException {
+        while (b.hasRemaining()) {
+            ch.write(b);
+        }
+    }
+
+    private static void writeHeader(FileChannel ch, long total) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(HEADER);
+        b.putInt(MAGIC).putInt(VERSION).putLong(total).flip();
+        long end = ch.size();
+        ch.position(0);
+        writeFully(ch, b);
+        ch.position(Math.max(end, HEADER));
+    }
+
+    /**
+     * Write one block at the current position.
+     *
+     * @return The number of points written.
+     */
+    private static long writeBlock(FileChannel ch, Collection<? extends LabelledPoint> points) throws IOException {
+        int n = points.size();
+        LinkedHashMap<String, Integer> table = new LinkedHashMap<>();
+        int[] idx = new int[n];
+        int i = 0;
+        for (LabelledPoint p : points) {
+            Integer li = table.get(p.label);
+            if (null == li) {
+                li = table.size();
+                table.put(p.label, li);
+            }
+            idx[i++] = li;
+        }
+        List<byte[]> names = new ArrayList<>(table.size());
+        int tableBytes = 0;
+        for (String s : table.keySet()) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            names.add(bytes);
+            tableBytes += 4 + pad(bytes.length);
+        }
+        ByteBuffer head = ByteBuffer.allocate(12 + tableBytes);
+        head.putInt(BLOCK_MAGIC).putInt(n).putInt(table.size());
+        for (byte[] bytes : names) {
+            head.putInt(bytes.length).put(bytes);
+            head.position(head.position() + pad(bytes.length) - bytes.length);
+        }
+        head.flip();
+        writeFully(ch, head);
+        ByteBuffer cols = ByteBuffer.allocate(12 * n);
+        IntBuffer ib = cols.asIntBuffer();
+        for (LabelledPoint p : points) {
+            ib.put(p.x);
+        }
+        for (LabelledPoint p : points) {
+            ib.put(p.y);
+        }
+        ib.put(idx);
+        writeFully(ch, cols);
+        return n;
+    }
+
+    /**
+     * Writes points to the end of a file in blocks, as they come in.
+     */
+    public static class Appender implements Closeable {
+
+        private final FileChannel ch;
+        private final List<LabelledPoint> pending = new ArrayList<>();
+        private long total;
+
+        /**
+         * Open a file for appending, creating it if needed.
+         *
+         * @param f The file.
+         * @throws IOException If the file exists but is not a point set.
+         */
+        public Appender(File f) throws IOException {
+            ch = FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            try {
+                if (ch.size() < HEADER) {
+                    ch.truncate(0);
+                    writeHeader(ch, 0);
+                } else {
+                    ByteBuffer hdr = read(ch, 0, HEADER);
+                    if (hdr.getInt() != MAGIC || hdr.getInt() > VERSION) {
+                        throw new IOException("Not a point set: " + f);
+                    }
+                    total = hdr.getLong();
+                    if (total < 0 || total > Integer.MAX_VALUE) {
+                        throw new IOException("Corrupt point set, " + total + " points: " + f);
+                    }
+                    // drop what an interrupted append left after the counted blocks
+                    long size = ch.size();
+                    long pos = HEADER;
+                    for (long left = total; left > 0;) {
+                        BlockHead bh = readBlockHead(ch, pos, size, left, f);
+                        pos = bh.columns + 12L * bh.n;
+                        left -= bh.n;
+                    }
+                    ch.truncate(pos);
+                }
+                ch.position(ch.size());
+            } catch (IOException ex) {
+                ch.close();
+                throw ex;
+            }
+        }
+
+        /**
+         * @param p A point, written when a block is full or on flush().
+         * @throws IOException Whenever.
+         */
+        public void add(LabelledPoint p) throws IOException {
+            pending.add(new LabelledPoint(p));
+            if (pending.size() >= BLOCK_POINTS) {
+                flush();
+            }
+        }
+
+        /**
+         * @param points Points to add.
+         * @throws IOException Whenever.
+         */
+        public void addAll(Collection<? extends LabelledPoint> points) throws IOException {
+            for (LabelledPoint p : points) {
+                add(p);
+            }
+        }
+
+        /**
+         * Write the pending points as a block and update the header.
+         *
+         * @throws IOException Whenever.
+         */
+        public void flush() throws IOException {
+            if (pending.isEmpty()) {
+                return;
+            }
+            total += writeBlock(ch, pending);
+            pending.clear();
+            writeHeader(ch, total);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                ch.close();
+            }
+        }
+    }
+
+    /**
+     * A point set read from a file, the columns stay in the file.
+     */
+    public static class PointSet {
+
+        private final List<IntBuffer> xs = new ArrayList<>();
+        private final List<IntBuffer> ys = new ArrayList<>();
+        private final List<IntBuffer> ls = new ArrayList<>();
+        private final List<String[]> labels = new ArrayList<>();
+        /**
+         * Index of the first point of each block, plus the total at the end.
+         */
+        private long[] starts = {0};
+
+        private void addBlock(int n, String[] names, IntBuffer x, IntBuffer y, IntBuffer l) {
+            xs.add(x);
+            ys.add(y);
+            ls.add(l);
+            labels.add(names);
+            long[] s = new long[starts.length + 1];
+            System.arraycopy(starts, 0, s, 0, starts.length);
+            s[starts.length] = starts[starts.length - 1] + n;
+            starts = s;
+        }
+
+        /**
+         * @return Number of points.
+         */
+        public int size() {
+            return (int) starts[starts.length - 1];
+        }
+
+        private int block(int i) {
+            int lo = 0;
+            int hi = starts.length - 2;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (starts[mid] <= i) {
+                    lo = mid;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return lo;
+        }
+
+        /**
+         * @param i Point index.
+         * @return X of the point.
+         */
+        public int getX(int i) {
+            int b = block(i);
+            return xs.get(b).get((int) (i - starts[b]));
+        }
+
+        /**
+         * @param i Point index.
+         * @return Y of the point.
+         */
+        public int getY(int i) {
+            int b = block(i);
+            return ys.get(b).get((int) (i - starts[b]));
+        }
+
+        /**
+         * @param i Point index.
+         * @return Label of the point.
+         */
+        public String getLabel(int i) {
+            int b = block(i);
+            return labels.get(b)[ls.get(b).get((int) (i - starts[b]))];
+        }
+
+        /**
+         * @param i Point index.
+         * @return A new LabelledPoint.
+         */
+        public LabelledPoint get(int i) {
+            int b = block(i);
+            int j = (int) (i - starts[b]);
+            return new LabelledPoint(xs.get(b).get(j), ys.get(b).get(j), labels.get(b)[ls.get(b).get(j)]);
+        }
+
+        /**
+         * @return All points as LabelledPoints.
+         */
+        public List<LabelledPoint> toList() {
+            List<LabelledPoint> ret = new ArrayList<>(size());
+            for (int b = 0; b < xs.size(); b++) {
+                IntBuffer x = xs.get(b);
+                IntBuffer y = ys.get(b);
+                IntBuffer l = ls.get(b);
+                String[] names = labels.get(b);
+                for (int j = 0; j < x.limit(); j++) {
+                    ret.add(new LabelledPoint(x.get(j), y.get(j), names[l.get(j)]));
+                }
+            }
+            return ret;
+        }
+    }
+}
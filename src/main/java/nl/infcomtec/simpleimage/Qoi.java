@@ -0,0 +1,233 @@
+package nl.infcomtec.simpleimage;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The "Quite OK Image" format.
+ * <p>
+ * Lossless like PNG but without deflate: every pixel is a short run, a
+ * reference to one of 64 recently seen colors, a small difference to the
+ * previous pixel or the color itself. Writing is about as fast as copying
+ * the pixels, which makes it the format to save in first.
+ * </p>
+ *
+ * @author Walter Stroebel
+ */
+final class Qoi {
+
+    /**
+     * "qoif".
+     */
+    static final int MAGIC = 0x716F6966;
+    private static final int OP_INDEX = 0x00;
+    private static final int OP_DIFF = 0x40;
+    private static final int OP_LUMA = 0x80;
+    private static final int OP_RUN = 0xC0;
+    private static final int OP_RGB = 0xFE;
+    private static final int OP_RGBA = 0xFF;
+    private static final int MASK = 0xC0;
+    private static final byte[] END = {0, 0, 0, 0, 0, 0, 0, 1};
+    /**
+     * Rows read from the image at a time.
+     */
+    private static final int ROWS = 16;
+
+    private Qoi() {
+    }
+
+    private static int hash(int argb) {
+        return (((argb >> 16) & 0xFF) * 3 + ((argb >> 8) & 0xFF) * 5 + (argb & 0xFF) * 7 + (argb >>> 24) * 11) & 63;
+    }
+
+    /**
+     * @param f A file.
+     * @return true if it starts like a QOI image.
+     */
+    static boolean isQoi(File f) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(f))) {
+            return in.readInt() == MAGIC;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Write an image.
+     *
+     * @param image The image, any type.
+     * @param f The file.
+     * @throws IOException Whenever.
+     */
+    static void write(BufferedImage image, File f) throws IOException {
+        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(f), 1 << 16)) {
+            write(image, os);
+        }
+    }
+
+    static void write(BufferedImage image, OutputStream os) throws IOException {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        boolean argb = image.getType() == BufferedImage.TYPE_INT_ARGB || MappedImage.isOffHeap(image);
+        byte[] out = new byte[1 << 16];
+        putInt(out, 0, MAGIC);
+        putInt(out, 4, w);
+        putInt(out, 8, h);
+        out[12] = 4; // RGBA
+        out[13] = 0; // sRGB
+        int n = 14;
+        int[] index = new int[64];
+        int prev = 0xFF000000;
+        int run = 0;
+        int[] rows = new int[w * ROWS];
+        for (int y0 = 0; y0 < h; y0 += ROWS) {
+            int rh = Math.min(ROWS, h - y0);
+            if (argb) {
+                MappedImage.getPixels(image, 0, y0, w, rh, rows);
+            } else {
+                image.getRGB(0, y0, w, rh, rows, 0, w);
+            }
+            for (int i = 0, end = w * rh; i < end; i++) {
+                if (n > out.length - 8) {
+                    os.write(out, 0, n);
+                    n = 0;
+                }
+                int px = rows[i];
+                if (px == prev) {
+                    run++;
+                    if (run == 62) {
+                        out[n++] = (byte) (OP_RUN | (run - 1));
+                        run = 0;
+                    }
+                    continue;
+                }
+                if (run > 0) {
+                    out[n++] = (byte) (OP_RUN | (run - 1));
+                    run = 0;
+                }
+                int hi = hash(px);
+                if (index[hi] == px) {
+                    out[n++] = (byte) (OP_INDEX | hi);
+                } else {
+                    index[hi] = px;
+                    if ((px >>> 24) == (prev >>> 24)) {
+                        // differences wrap around like bytes
+                        int dr = (byte) ((px >> 16) - (prev >> 16));
+                        int dg = (byte) ((px >> 8) - (prev >> 8));
+                        int db = (byte) (px - prev);
+                        int drg = dr - dg;
+                        int dbg = db - dg;
+                        if (dr >= -2 && dr <= 1 && dg >= -2 && dg <= 1 && db >= -2 && db <= 1) {
+                            out[n++] = (byte) (OP_DIFF | (dr + 2) << 4 | (dg + 2) << 2 | (db + 2));
+                        } else if (dg >= -32 && dg <= 31 && drg >= -8 && drg <= 7 && dbg >= -8 && dbg <= 7) {
+                            out[n++] = (byte) (OP_LUMA | (dg + 32));
+                            out[n++] = (byte) ((drg + 8) << 4 | (dbg + 8));
+                        } else {
+                            out[n++] = (byte) OP_RGB;
+                            out[n++] = (byte) (px >> 16);
+                            out[n++] = (byte) (px >> 8);
+                            out[n++] = (byte) px;
+                        }
+                    } else {
+                        out[n++] = (byte) OP_RGBA;
+                        out[n++] = (byte) (px >> 16);
+                        out[n++] = (byte) (px >> 8);
+                        out[n++] = (byte) px;
+                        out[n++] = (byte) (px >>> 24);
+                    }
+                }
+                prev = px;
+            }
+        }
+        if (run > 0) {
+            out[n++] = (byte) (OP_RUN | (run - 1));
+        }
+        os.write(out, 0, n);
+        os.write(END);
+    }
+
+    private static void putInt(byte[] b, int i, int v) {
+        b[i] = (byte) (v >>> 24);
+        b[i + 1] = (byte) (v >>> 16);
+        b[i + 2] = (byte) (v >>> 8);
+        b[i + 3] = (byte) v;
+    }
+
+    /**
+     * Read an image, big ones are put off-heap.
+     *
+     * @param f The file.
+     * @return A TYPE_INT_ARGB or off-heap ARGB image.
+     * @throws IOException If it is not a valid QOI file.
+     */
+    static BufferedImage read(File f) throws IOException {
+        try (InputStream is = new BufferedInputStream(new FileInputStream(f), 1 << 16)) {
+            return read(is);
+        }
+    }
+
+    static BufferedImage read(InputStream is) throws IOException {
+        DataInputStream in = new DataInputStream(is);
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a QOI image");
+        }
+        int w = in.readInt();
+        int h = in.readInt();
+        in.readUnsignedShort(); // channels and color space, always decoded as RGBA
+        if (w <= 0 || h <= 0 || (long) w * h > Integer.MAX_VALUE) {
+            throw new IOException("Bad QOI size " + w + "x" + h);
+        }
+        BufferedImage ret = MappedImage.allocate(w, h, (long) w * h > MappedImage.OFF_HEAP_PIXELS);
+        int[] index = new int[64];
+        int px = 0xFF000000;
+        int run = 0;
+        int[] row = new int[w];
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                if (run > 0) {
+                    run--;
+                } else {
+                    int b1 = is.read();
+                    if (b1 < 0) {
+                        throw new EOFException("QOI image is truncated");
+                    }
+                    if (b1 == OP_RGB) {
+                        px = (px & 0xFF000000) | is.read() << 16 | is.read() << 8 | is.read();
+                    } else if (b1 == OP_RGBA) {
+                        int rgb = is.read() << 16 | is.read() << 8 | is.read();
+                        px = is.read() << 24 | rgb;
+                    } else if ((b1 & MASK) == OP_INDEX) {
+                        px = index[b1];
+                    } else if ((b1 & MASK) == OP_DIFF) {
+                        int r = ((px >> 16) + ((b1 >> 4) & 3) - 2) & 0xFF;
+                        int g = ((px >> 8) + ((b1 >> 2) & 3) - 2) & 0xFF;
+                        int b = (px + (b1 & 3) - 2) & 0xFF;
+                        px = (px & 0xFF000000) | r << 16 | g << 8 | b;
+                    } else if ((b1 & MASK) == OP_LUMA) {
+                        int b2 = is.read();
+                        int dg = (b1 & 0x3F) - 32;
+                        int r = ((px >> 16) + dg - 8 + ((b2 >> 4) & 0x0F)) & 0xFF;
+                        int g = ((px >> 8) + dg) & 0xFF;
+                        int b = (px + dg - 8 + (b2 & 0x0F)) & 0xFF;
+                        px = (px & 0xFF000000) | r << 16 | g << 8 | b;
+                    } else {
+                        run = b1 & 0x3F;
+                    }
+                    index[hash(px)] = px;
+                }
+                row[x] = px;
+            }
+            MappedImage.setPixels(ret, 0, y, w, 1, row);
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,279 @@
+package nl.infcomtec.simpleimage;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.List;
+
+/**
+ * The stages an ImageViewer tile goes through before it is shown.
+ * <p>
+ * Each stage has its own layer in one tile cache, so one budget covers the
+ * scaled image, the scaled image with the LUT applied and that with the
+ * markers drawn on it. A change invalidates its own stage and the ones after
+ * it, so switching the LUT does not scale again and adding a marker does not
+ * apply the LUT again. Overlays like flash messages are painted on top by the
+ * panel and invalidate nothing. A stage that has nothing to do passes the
+ * tiles of the previous stage on.
+ * </p>
+ *
+ * @author Walter Stroebel
+ */
+class RenderPipeline {
+
+    /**
+     * The stages, in order.
+     */
+    enum Stage {
+        SCALE, LUT, MARKERS
+    }
+
+    private final ImageViewer imgView;
+    private final TileCache cache = new TileCache();
+    /**
+     * Bumped on every invalidation, a tile rendered under an older version is
+     * not cached.
+     */
+    private final int[] versions = new int[Stage.values().length];
+
+    RenderPipeline(ImageViewer imgView) {
+        this.imgView = imgView;
+    }
+
+    /**
+     * Forget the results of a stage and all stages after it.
+     *
+     * @param from The first stage to forget.
+     */
+    synchronized void invalidate(Stage from) {
+        cache.clear(from.ordinal());
+        for (int i = from.ordinal(); i < versions.length; i++) {
+            versions[i]++;
+        }
+    }
+
+    /**
+     * Forget the tiles of all stages that show part of a region.
+     *
+     * @param region The region in image pixels.
+     */
+    synchronized void invalidate(Rectangle region) {
+        cache.remove(region);
+        for (int i = 0; i < versions.length; i++) {
+            versions[i]++;
+        }
+    }
+
+    private synchronized int version(Stage stage) {
+        return versions[stage.ordinal()];
+    }
+
+    private synchronized void put(Stage stage, int version, double scale, int tx, int ty, BufferedImage tile) {
+        if (versions[stage.ordinal()] == version) {
+            cache.put(stage.ordinal(), scale, tx, ty, tile);
+        }
+    }
+
+    /**
+     * Get a finished tile, computing only the stages that are not cached.
+     *
+     * @param scale Display scale.
+     * @param tx Tile column.
+     * @param ty Tile row.
+     * @return The tile.
+     */
+    BufferedImage tile(double scale, int tx, int ty) {
+        return tile(Stage.MARKERS, scale, tx, ty);
+    }
+
+    /**
+     * Get a finished tile only if nothing has to be rendered for it.
+     *
+     * @param scale Display scale.
+     * @param tx Tile column.
+     * @param ty Tile row.
+     * @return The tile or null.
+     */
+    BufferedImage cached(double scale, int tx, int ty) {
+        // the last stage that does something holds the finished tile
+        Stage last = Stage.SCALE;
+        if (null != imgView.marks && !imgView.marks.isEmpty()) {
+            last = Stage.MARKERS;
+        } else if (null != imgView.lut) {
+            last = Stage.LUT;
+        }
+        return cache.get(last.ordinal(), scale, tx, ty);
+    }
+
+    private BufferedImage tile(Stage stage, double scale, int tx, int ty) {
+        BufferedImage ret = cache.get(stage.ordinal(), scale, tx, ty);
+        if (null != ret) {
+            return ret;
+        }
+        int version = version(stage);
+        switch (stage) {
+            case SCALE:
+                ret = scaled(scale, tx, ty);
+                break;
+            case LUT: {
+                BufferedImage in = tile(Stage.SCALE, scale, tx, ty);
+                LUT lut = imgView.lut;
+                if (null == lut) {
+                    return in;
+                }
+                ret = lut.apply(in);
+                break;
+            }
+            case MARKERS: {
+                BufferedImage in = tile(Stage.LUT, scale, tx, ty);
+                List<Marker> marks = imgView.marks;
+                if (null == marks || marks.isEmpty()) {
+                    return in;
+                }
+                ret = copy(in);
+                Marker.markAll(ret, marks, tx * TileCache.TILE, ty * TileCache.TILE);
+                break;
+            }
+        }
+        put(stage, version, scale, tx, ty, ret);
+        return ret;
+    }
+
+    /**
+     * Tell a lazily loaded image which tiles are shown, so it can keep their
+     * full resolution blocks.
+     *
+     * @param scale Display scale.
+     * @param tiles Columns and rows of the visible tiles.
+     */
+    void setView(double scale, Rectangle tiles) {
+        LazyImageLoader lazy = imgView.lazy;
+        if (null == lazy || scale <= 1 || tiles.isEmpty()) {
+            return;
+        }
+        double full = scale * imgView.imgObj.getWidth() / lazy.getWidth();
+        int x0 = (int) Math.floor(tiles.x * TileCache.TILE / full);
+        int y0 = (int) Math.floor(tiles.y * TileCache.TILE / full);
+        int x1 = (int) Math.ceil((tiles.x + tiles.width) * TileCache.TILE / full);
+        int y1 = (int) Math.ceil((tiles.y + tiles.height) * TileCache.TILE / full);
+        lazy.setView(subsampling(full), new Rectangle(x0, y0, x1 - x0, y1 - y0));
+    }
+
+    /**
+     * @param full Display pixels per full resolution pixel.
+     * @return Block subsampling with just enough detail.
+     */
+    private static int subsampling(double full) {
+        return Math.max(1, Integer.highestOneBit((int) Math.floor(1 / full)));
+    }
+
+    private static BufferedImage copy(BufferedImage src) {
+        BufferedImage ret = new BufferedImage(src.getWidth(), src.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        src.copyData(ret.getRaster());
+        return ret;
+    }
+
+    /**
+     * Render one tile of the image at a scale.
+     *
+     * @param scale Display scale.
+     * @param tx Tile column.
+     * @param ty Tile row.
+     * @return The tile.
+     */
+    private BufferedImage scaled(double scale, int tx, int ty) {
+        // one snapshot, the image can be replaced while we render
+        ImageObject.Snapshot snap = imgView.imgObj.getSnapshot();
+        int scaledWidth = (int) (snap.image.getWidth() * scale);
+        int scaledHeight = (int) (snap.image.getHeight() * scale);
+        int tileX = tx * TileCache.TILE;
+        int tileY = ty * TileCache.TILE;
+        int w = Math.max(1, Math.min(TileCache.TILE, scaledWidth - tileX));
+        int h = Math.max(1, Math.min(TileCache.TILE, scaledHeight - tileY));
+        BufferedImage tile = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g2 = tile.createGraphics();
+        g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g2.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+        g2.translate(-tileX, -tileY);
+        // sample from the mipmap level just above the display size
+        BufferedImage src = snap.getMipmapFor(scale);
+        double sx = scale * snap.image.getWidth() / src.getWidth();
+        double sy = scale * snap.image.getHeight() / src.getHeight();
+        g2.scale(sx, sy);
+        if (MappedImage.isOffHeap(src)) {
+            // Java2D would copy the whole image, copy just what we need
+            Rectangle r = new Rectangle((int) Math.floor(tileX / sx) - 1, (int) Math.floor(tileY / sy) - 1,
+                    (int) Math.ceil(w / sx) + 3, (int) Math.ceil(h / sy) + 3);
+            r = r.intersection(new Rectangle(src.getWidth(), src.getHeight()));
+            g2.drawImage(MappedImage.getTile(src, r), r.x, r.y, null);
+        } else {
+            g2.drawImage(src, 0, 0, null);
+        }
+        g2.dispose();
+        if (null != imgView.lazy && scale > 1) {
+            // zoomed in beyond the overview, draw the real pixels over it
+            drawBlocks(tile, scale, snap.image.getWidth(), tileX, tileY, w, h);
+        }
+        return tile;
+    }
+
+    /**
+     * Draw the full resolution blocks of a lazily loaded image that cover a
+     * tile. Blocks are decoded with just enough subsampling for the scale.
+     * Blocks that are not decoded yet are requested in the background, the
+     * tile shows the overview there until they arrive and the tiles they
+     * cover are invalidated.
+     *
+     * @param tile The tile.
+     * @param scale Display scale.
+     * @param imgWidth Width of the overview image.
+     * @param tileX Left of the tile in display pixels.
+     * @param tileY Top of the tile in display pixels.
+     * @param w Width of the tile.
+     * @param h Height of the tile.
+     */
+    private void drawBlocks(BufferedImage tile, double scale, int imgWidth, int tileX, int tileY, int w, int h) {
+        final LazyImageLoader lazy = imgView.lazy;
+        // display pixels per full resolution pixel
+        double full = scale * imgWidth / lazy.getWidth();
+        int sub = subsampling(full);
+        int span = LazyImageLoader.BLOCK * sub;
+        int fx0 = (int) Math.floor(tileX / full);
+        int fy0 = (int) Math.floor(tileY / full);
+        int fx1 = (int) Math.ceil((tileX + w) / full);
+        int fy1 = (int) Math.ceil((tileY + h) / full);
+        Graphics2D g2 = tile.createGraphics();
+        g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g2.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+        g2.translate(-tileX, -tileY);
+        g2.scale(full, full);
+        for (int by = fy0 / span; by * span < fy1; by++) {
+            for (int bx = fx0 / span; bx * span < fx1; bx++) {
+                BufferedImage block = lazy.getCachedBlock(sub, bx, by);
+                if (null == block) {
+                    // decoding can take seconds, never do it while painting
+                    final Rectangle r = lazy.getBlockRegion(sub, bx, by);
+                    final double toImage = (double) imgWidth / lazy.getWidth();
+                    lazy.loadBlock(sub, bx, by, new Runnable() {
+                        @Override
+                        public void run() {
+                            int x0 = (int) Math.floor(r.x * toImage);
+                            int y0 = (int) Math.floor(r.y * toImage);
+                            int x1 = (int) Math.ceil((r.x + r.width) * toImage);
+                            int y1 = (int) Math.ceil((r.y + r.height) * toImage);
+                            invalidate(new Rectangle(x0, y0, x1 - x0, y1 - y0));
+                            imgView.imgObj.sendSignal(null);
+                        }
+                    });
+                } else {
+                    int x = bx * span;
+                    int y = by * span;
+                    g2.drawImage(block, x, y, x + block.getWidth() * sub, y + block.getHeight() * sub,
+                            0, 0, block.getWidth(), block.getHeight(), null);
+                }
+            }
+        }
+        g2.dispose();
+    }
+}
@@ -0,0 +1,23 @@
+package nl.infcomtec.simpleimage;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Source of an image that can be rendered at any scale, like a vector drawing.
+ * <p>
+ * If an ImageViewer has one, zooming in far enough renders the source again
+ * at the higher scale instead of blowing up the pixels.
+ * </p>
+ *
+ * @author Walter Stroebel
+ */
+public interface ScalableSource {
+
+    /**
+     * Render the source.
+     *
+     * @param scale Scale relative to the natural size of the source.
+     * @return The rendered image or null if rendering failed.
+     */
+    BufferedImage render(double scale);
+}
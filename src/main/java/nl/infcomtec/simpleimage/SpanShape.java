@@ -0,0 +1,442 @@
+package nl.infcomtec.simpleimage;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.geom.Point2D;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Pixel membership as runs per row.
+ * <p>
+ * Only the rows between the top and the bottom of the shape are stored, each
+ * as a sorted array of [start, end) pairs. A small shape far from the origin
+ * costs next to nothing and a filled rectangle costs two ints per row, where
+ * a BitShape would need bits from (0,0) up to its last pixel. Same methods as
+ * BitShape, plus set operations that work run by run.
+ * </p>
+ *
+ * @author Walter Stroebel
+ */
+public class SpanShape implements PixelShape {
+
+    private static final int[] EMPTY = new int[0];
+    private static final int OR = 0;
+    private static final int AND = 1;
+    private static final int AND_NOT = 2;
+    /**
+     * Row of the first entry in rows.
+     */
+    private int minY = 0;
+    /**
+     * Number of rows in use, rows can be longer.
+     */
+    private int count = 0;
+    private int[][] rows = new int[0][];
+
+    /**
+     * Empty shape.
+     */
+    public SpanShape() {
+    }
+
+    /**
+     * Copy any shape, for instance to compress a BitShape.
+     *
+     * @param other The shape to copy.
+     */
+    public SpanShape(PixelShape other) {
+        other.forEachSpan(new SpanVisitor() {
+            @Override
+            public void span(int y, int x0, int x1) {
+                setSpan(x0, x1, y);
+            }
+        });
+    }
+
+    /**
+     * A filled rectangle.
+     *
+     * @param r The rectangle.
+     */
+    public SpanShape(Rectangle r) {
+        for (int y = r.y; y < r.y + r.height; y++) {
+            setSpan(r.x, r.x + r.width, y);
+        }
+    }
+
+    private int[] row(int y) {
+        int i = y - minY;
+        if (i < 0 || i >= count) {
+            return EMPTY;
+        }
+        return rows[i];
+    }
+
+    /**
+     * Make sure row y is stored.
+     *
+     * @return Its index in rows.
+     */
+    private int ensure(int y) {
+        if (0 == count) {
+            if (rows.length == 0) {
+                rows = new int[8][];
+            }
+            minY = y;
+            rows[0] = EMPTY;
+            count = 1;
+            return 0;
+        }
+        if (y < minY) {
+            int extra = minY - y;
+            int[][] n = new int[Math.max(rows.length, count + extra)][];
+            Arrays.fill(n, 0, extra, EMPTY);
+            System.arraycopy(rows, 0, n, extra, count);
+            rows = n;
+            count += extra;
+            minY = y;
+        } else if (y - minY >= count) {
+            int need = y - minY + 1;
+            if (need > rows.length) {
+                rows = Arrays.copyOf(rows, Math.max(need, rows.length * 2));
+            }
+            Arrays.fill(rows, count, need, EMPTY);
+            count = need;
+        }
+        return y - minY;
+    }
+
+    @Override
+    public final boolean contains(int x, int y) {
+        int[] r = row(y);
+        // index of the first boundary greater than x, odd means inside a run
+        int lo = 0;
+        int hi = r.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (r[mid] <= x) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return (lo & 1) == 1;
+    }
+
+    @Override
+    public final boolean contains(Point2D p) {
+        return contains((int) Math.round(p.getX()), (int) Math.round(p.getY()));
+    }
+
+    /**
+     * Just for semantics == contains().
+     *
+     * @param p The point, java.awt.Point is also a Point2D.
+     * @return true if p is inside the shape.
+     */
+    public final boolean get(Point2D p) {
+        return contains(p);
+    }
+
+    /**
+     * Add a point.
+     *
+     * @param x
+     * @param y
+     */
+    public final void set(int x, int y) {
+        setSpan(x, x + 1, y);
+    }
+
+    /**
+     * Add a point.
+     *
+     * @param p The point, java.awt.Point is also a Point2D.
+     */
+    public final void set(Point2D p) {
+        set((int) Math.round(p.getX()), (int) Math.round(p.getY()));
+    }
+
+    /**
+     * Add a horizontal run of points at once.
+     *
+     * @param x0 First x.
+     * @param x1 Last x plus one.
+     * @param y
+     */
+    public final void setSpan(int x0, int x1, int y) {
+        if (x0 >= x1) {
+            return;
+        }
+        int i = ensure(y);
+        int[] r = rows[i];
+        int n = r.length;
+        if (n == 0 || r[n - 1] < x0) {
+            // the common case when building left to right
+            int[] a = Arrays.copyOf(r, n + 2);
+            a[n] = x0;
+            a[n + 1] = x1;
+            rows[i] = a;
+        } else {
+            rows[i] = combine(r, new int[]{x0, x1}, OR);
+        }
+    }
+
+    /**
+     * Remove a point.
+     *
+     * @param x
+     * @param y
+     */
+    public final void reset(int x, int y) {
+        resetSpan(x, x + 1, y);
+    }
+
+    /**
+     * Remove a point.
+     *
+     * @param p The point, java.awt.Point is also a Point2D.
+     */
+    public final void reset(Point2D p) {
+        reset((int) Math.round(p.getX()), (int) Math.round(p.getY()));
+    }
+
+    /**
+     * Just for semantics == reset().
+     *
+     * @param p The point, java.awt.Point is also a Point2D.
+     */
+    public final void clear(Point2D p) {
+        reset(p);
+    }
+
+    /**
+     * Remove a horizontal run of points at once.
+     *
+     * @param x0 First x.
+     * @param x1 Last x plus one.
+     * @param y
+     */
+    public final void resetSpan(int x0, int x1, int y) {
+        int i = y - minY;
+        if (x0 >= x1 || i < 0 || i >= count) {
+            return;
+        }
+        rows[i] = combine(rows[i], new int[]{x0, x1}, AND_NOT);
+    }
+
+    /**
+     * @return true if there are no pixels.
+     */
+    public boolean isEmpty() {
+        for (int i = 0; i < count; i++) {
+            if (rows[i].length > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return Number of pixels.
+     */
+    public long area() {
+        long ret = 0;
+        for (int i = 0; i < count; i++) {
+            int[] r = rows[i];
+            for (int j = 0; j < r.length; j += 2) {
+                ret += r[j + 1] - r[j];
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public Rectangle getBounds() {
+        int x0 = Integer.MAX_VALUE;
+        int x1 = Integer.MIN_VALUE;
+        int y0 = -1;
+        int y1 = -1;
+        for (int i = 0; i < count; i++) {
+            int[] r = rows[i];
+            if (r.length > 0) {
+                if (y0 < 0) {
+                    y0 = i;
+                }
+                y1 = i;
+                x0 = Math.min(x0, r[0]);
+                x1 = Math.max(x1, r[r.length - 1]);
+            }
+        }
+        if (y0 < 0) {
+            return new Rectangle();
+        }
+        return new Rectangle(x0, minY + y0, x1 - x0, y1 - y0 + 1);
+    }
+
+    @Override
+    public void forEachSpan(SpanVisitor visitor) {
+        forEachSpan(minY, minY + count, visitor);
+    }
+
+    @Override
+    public void forEachSpan(int y0, int y1, SpanVisitor visitor) {
+        int from = Math.max(0, y0 - minY);
+        int to = Math.min(count, y1 - minY);
+        for (int i = from; i < to; i++) {
+            int[] r = rows[i];
+            for (int j = 0; j < r.length; j += 2) {
+                visitor.span(minY + i, r[j], r[j + 1]);
+            }
+        }
+    }
+
+    /**
+     * @param other Any shape.
+     * @return New shape with the pixels in either.
+     */
+    public SpanShape union(PixelShape other) {
+        return combine(this, spans(other), OR);
+    }
+
+    /**
+     * @param other Any shape.
+     * @return New shape with the pixels in both.
+     */
+    public SpanShape intersection(PixelShape other) {
+        return combine(this, spans(other), AND);
+    }
+
+    /**
+     * @param other Any shape.
+     * @return New shape with the pixels in this but not in other.
+     */
+    public SpanShape difference(PixelShape other) {
+        return combine(this, spans(other), AND_NOT);
+    }
+
+    /**
+     * @param width The width of the image the shape is for.
+     * @return The shape as a BitShape.
+     */
+    public BitShape toBitShape(int width) {
+        final BitShape ret = new BitShape(width);
+        forEachSpan(new SpanVisitor() {
+            @Override
+            public void span(int y, int x0, int x1) {
+                ret.setSpan(x0, x1, y);
+            }
+        });
+        return ret;
+    }
+
+    private static SpanShape spans(PixelShape other) {
+        return other instanceof SpanShape ? (SpanShape) other : new SpanShape(other);
+    }
+
+    private static SpanShape combine(SpanShape a, SpanShape b, int op) {
+        SpanShape ret = new SpanShape();
+        if (a.count == 0 && b.count == 0) {
+            return ret;
+        }
+        int y0 = b.count == 0 ? a.minY : a.count == 0 ? b.minY : Math.min(a.minY, b.minY);
+        int y1 = Math.max(a.minY + a.count, b.minY + b.count);
+        for (int y = y0; y < y1; y++) {
+            int[] r = combine(a.row(y), b.row(y), op);
+            if (r.length > 0) {
+                int i = ret.ensure(y);
+                ret.rows[i] = r;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Combine two rows of runs by sweeping over their boundaries.
+     */
+    private static int[] combine(int[] a, int[] b, int op) {
+        int[] out = new int[a.length + b.length];
+        int n = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length || j < b.length) {
+            int p = Math.min(i < a.length ? a[i] : Integer.MAX_VALUE, j < b.length ? b[j] : Integer.MAX_VALUE);
+            while (i < a.length && a[i] == p) {
+                i++;
+            }
+            while (j < b.length && b[j] == p) {
+                j++;
+            }
+            boolean inA = (i & 1) == 1;
+            boolean inB = (j & 1) == 1;
+            boolean in;
+            switch (op) {
+                case OR:
+                    in = inA || inB;
+                    break;
+                case AND:
+                    in = inA && inB;
+                    break;
+                default:
+                    in = inA && !inB;
+            }
+            if (in != ((n & 1) == 1)) {
+                out[n++] = p;
+            }
+        }
+        return n == out.length ? out : Arrays.copyOf(out, n);
+    }
+
+    @Override
+    public Iterator<Point> iterator() {
+        return new Iterator<Point>() {
+            int i = 0;
+            int j = 0;
+            int x = Integer.MIN_VALUE;
+
+            {
+                advance();
+            }
+
+            /**
+             * Move to the next pixel if x is past the current run.
+             */
+            private void advance() {
+                while (i < count) {
+                    int[] r = rows[i];
+                    if (j < r.length) {
+                        if (x < r[j]) {
+                            x = r[j];
+                        }
+                        if (x < r[j + 1]) {
+                            return;
+                        }
+                        j += 2;
+                    } else {
+                        i++;
+                        j = 0;
+                        x = Integer.MIN_VALUE;
+                    }
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return i < count;
+            }
+
+            @Override
+            public Point next() {
+                if (i >= count) {
+                    throw new NoSuchElementException();
+                }
+                Point ret = new Point(x, minY + i);
+                x++;
+                advance();
+                return ret;
+            }
+        };
+    }
+}
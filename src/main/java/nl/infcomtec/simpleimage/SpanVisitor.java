@@ -0,0 +1,16 @@
+package nl.infcomtec.simpleimage;
+
+/**
+ * Receives horizontal runs of pixels, see PixelShape and LabelMap.
+ *
+ * @author Walter Stroebel
+ */
+public interface SpanVisitor {
+
+    /**
+     * @param y Row.
+     * @param x0 First x.
+     * @param x1 Last x plus one.
+     */
+    void span(int y, int x0, int x1);
+}
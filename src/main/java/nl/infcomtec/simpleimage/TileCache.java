@@ -0,0 +1,141 @@
+package nl.infcomtec.simpleimage;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of display tiles.
+ * <p>
+ * A tile is a TILE x TILE square of the image as displayed at some scale.
+ * Only the tiles that are visible get rendered, and panning reuses them. The
+ * least recently used tiles are dropped when the cache is full.
+ * </p><p>
+ * Tiles are kept in layers, one per stage of a RenderPipeline, that share
+ * the one budget. The budget is per viewer, MAX_TILES by default or the
+ * system property simpleimage.tileCacheMB.
+ * </p>
+ *
+ * @author Walter Stroebel
+ */
+class TileCache {
+
+    /**
+     * Width and height of a tile in display pixels.
+     */
+    public static final int TILE = 256;
+    /**
+     * Default maximum number of tiles of all layers together, 64MB worth of
+     * ARGB pixels unless simpleimage.tileCacheMB says otherwise.
+     */
+    public static final int MAX_TILES = (int) Math.max(1,
+            Long.getLong("simpleimage.tileCacheMB", 64) * 1024 * 1024 / (4L * TILE * TILE));
+
+    /**
+     * Identifies a tile.
+     */
+    private static final class Key {
+
+        final int layer;
+        final double scale;
+        final int tx;
+        final int ty;
+
+        Key(int layer, double scale, int tx, int ty) {
+            this.layer = layer;
+            this.scale = scale;
+            this.tx = tx;
+            this.ty = ty;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return k.tx == tx && k.ty == ty && k.layer == layer && k.scale == scale;
+        }
+
+        @Override
+        public int hashCode() {
+            return ((31 * tx + ty) * 31 + Double.hashCode(scale)) * 31 + layer;
+        }
+    }
+
+    private final int maxTiles;
+    private final LinkedHashMap<Key, BufferedImage> tiles;
+
+    TileCache(int maxTiles) {
+        this.maxTiles = maxTiles;
+        this.tiles = new LinkedHashMap<Key, BufferedImage>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, BufferedImage> eldest) {
+                return size() > TileCache.this.maxTiles;
+            }
+        };
+    }
+
+    TileCache() {
+        this(MAX_TILES);
+    }
+
+    /**
+     * @param layer The layer.
+     * @param scale Display scale.
+     * @param tx Tile column.
+     * @param ty Tile row.
+     * @return The tile or null if not cached.
+     */
+    synchronized BufferedImage get(int layer, double scale, int tx, int ty) {
+        return tiles.get(new Key(layer, scale, tx, ty));
+    }
+
+    /**
+     * @param layer The layer.
+     * @param scale Display scale.
+     * @param tx Tile column.
+     * @param ty Tile row.
+     * @param tile The rendered tile.
+     */
+    synchronized void put(int layer, double scale, int tx, int ty, BufferedImage tile) {
+        tiles.put(new Key(layer, scale, tx, ty), tile);
+    }
+
+    /**
+     * Forget the tiles of all layers that show part of a region of the image.
+     *
+     * @param region The region in image pixels.
+     */
+    synchronized void remove(Rectangle region) {
+        Iterator<Key> it = tiles.keySet().iterator();
+        while (it.hasNext()) {
+            Key k = it.next();
+            // a tile samples a little around itself, up to the mipmap level
+            double margin = 2 / k.scale + 1;
+            double x0 = k.tx * TILE / k.scale - margin;
+            double y0 = k.ty * TILE / k.scale - margin;
+            double x1 = (k.tx + 1) * TILE / k.scale + margin;
+            double y1 = (k.ty + 1) * TILE / k.scale + margin;
+            if (x0 < region.x + region.width && x1 > region.x && y0 < region.y + region.height && y1 > region.y) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Forget the tiles of some layers.
+     *
+     * @param from The first layer to forget, and all after it.
+     */
+    synchronized void clear(int from) {
+        Iterator<Key> it = tiles.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().layer >= from) {
+                it.remove();
+            }
+        }
+    }
+}
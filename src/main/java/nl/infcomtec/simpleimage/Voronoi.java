@@ -0,0 +1,115 @@
+package nl.infcomtec.simpleimage;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Nearest point (Voronoi) labelling of a raster.
+ * <p>
+ * Works a row at a time. On a row the squared distance to point i is the
+ * parabola (x - xi)^2 + (y - yi)^2, the nearest point is the lowest parabola.
+ * With the points sorted on x, the lower envelope of all parabolas is found in
+ * one pass and then read out left to right. That makes a row cost O(P + W)
+ * instead of O(P * W), without square roots. Rows are independent, bands of
+ * rows are done in parallel on the ImageScheduler, each writing only its own
+ * part of the result.
+ * </p>
+ *
+ * @author Walter Stroebel
+ */
+final class Voronoi {
+
+    /**
+     * Rows per parallel task.
+     */
+    private static final int ROWS = 16;
+
+    private Voronoi() {
+    }
+
+    /**
+     * Label every pixel with its nearest point.
+     *
+     * @param w Width of the raster.
+     * @param h Height of the raster.
+     * @param xs X of the points, may be outside the raster.
+     * @param ys Y of the points, same length as xs.
+     * @param job For progress and cancellation, may be null.
+     * @return Row by row, for each pixel the index of the nearest point, or -1
+     * for all pixels if there are no points.
+     */
+    static int[] label(final int w, final int h, final int[] xs, final int[] ys, ImageScheduler.Job<?> job) {
+        final int[] labels = new int[w * h];
+        if (xs.length == 0) {
+            Arrays.fill(labels, -1);
+            return labels;
+        }
+        Integer[] boxed = new Integer[xs.length];
+        for (int i = 0; i < boxed.length; i++) {
+            boxed[i] = i;
+        }
+        Arrays.sort(boxed, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Integer.compare(xs[a], xs[b]);
+            }
+        });
+        final int[] order = new int[boxed.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = boxed[i];
+        }
+        ImageScheduler.forRows(h, ROWS, new ImageScheduler.Rows() {
+            @Override
+            public void rows(int y0, int y1) {
+                Voronoi.rows(w, xs, ys, order, labels, y0, y1);
+            }
+        }, job);
+        return labels;
+    }
+
+    private static void rows(int w, int[] xs, int[] ys, int[] order, int[] labels, int y0, int y1) {
+        int n = order.length;
+        // the envelope: points, their squared row distance and where they start
+        int[] v = new int[n];
+        long[] g = new long[n];
+        double[] z = new double[n + 1];
+        for (int y = y0; y < y1; y++) {
+            int k = -1;
+            for (int i : order) {
+                long dy = y - ys[i];
+                long fi = dy * dy;
+                long xi = xs[i];
+                if (k >= 0 && xs[v[k]] == xi) {
+                    // same column, the closer one wins everywhere
+                    if (fi >= g[k]) {
+                        continue;
+                    }
+                    k--;
+                }
+                double s = 0;
+                while (k >= 0) {
+                    long xv = xs[v[k]];
+                    s = ((fi + xi * xi) - (g[k] + xv * xv)) / (2.0 * (xi - xv));
+                    if (s <= z[k]) {
+                        k--;
+                    } else {
+                        break;
+                    }
+                }
+                k++;
+                v[k] = i;
+                g[k] = fi;
+                z[k] = k == 0 ? Double.NEGATIVE_INFINITY : s;
+            }
+            z[k + 1] = Double.POSITIVE_INFINITY;
+            int j = 0;
+            int row = y * w;
+            for (int x = 0; x < w; x++) {
+                while (j < k && z[j + 1] < x) {
+                    j++;
+                }
+                labels[row + x] = v[j];
+            }
+        }
+    }
+}
@@ -12,6 +12,7 @@ import java.awt.event.MouseEvent;
 import java.awt.image.BufferedImage;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileWriter;
@@ -26,12 +27,14 @@ import java.nio.file.Files;
 import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.imageio.ImageIO;
 import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
 import javax.swing.Timer;
+import nl.infcomtec.simpleimage.ImageStore;
 import nl.infcomtec.simpleimage.ImageViewer;
 
 /**
@@ -136,6 +139,25 @@ public class Clippy {
     private final Clipboard clipboard;
     private int lastImageHash;
     private final String OUTPUT_SEPARATOR = "\n---CMD_OUTPUT_SEPARATOR---\n";
+    /**
+     * Rendered diagrams, shared by all groups.
+     */
+    private final RenderCache renderCache;
+    /**
+     * Graphviz processes waiting for a graph on stdin.
+     */
+    private final RendererPool dotPool = RendererPool.oneShot(1, "dot", "-Tpng");
+    /**
+     * ImageMagick processes waiting for an SVG on stdin, only used without
+     * Batik.
+     */
+    private final RendererPool convertPool = RendererPool.oneShot(1, "convert", "svg:-", "png:-");
+    private RendererPool plantUmlPool;
+    private static final String PIPE_DELIMITER = "---CLIPPY_PIPE_DELIMITER---";
+    /**
+     * Decides what to do with clipboard text.
+     */
+    private final ContentClassifier classifier = new ContentClassifier();
 
     /**
      * Constructor for the Clippy class. Initializes the GUI frame for the
@@ -144,6 +166,20 @@ public class Clippy {
     public Clippy() {
         this.gui = new ClippyFrame(this);
         clipboard = Toolkit.getDefaultToolkit().getSystemClipboard();
+        renderCache = new RenderCache(new File(workDir.get().getParentFile(), RenderCache.CACHE_DIR),
+                Config.getInstance(this).getRenderCacheBudget());
+        PlantUmlRenderer.warmUp();
+        dotPool.warmUp();
+        // ask the tools for their versions now, so the cache keys are ready
+        RenderCache.toolVersion("dot", "-V");
+        RenderCache.toolVersion("mmdc", "--version");
+        if (null == SvgRenderer.version()) {
+            RenderCache.toolVersion("convert", "-version");
+        }
+        if (null == PlantUmlRenderer.version()) {
+            RenderCache.toolVersion("plantuml", "-version");
+        }
+        registerHandlers();
         Timer timer = new Timer(1000, new ActionListener() {
 
             /**
@@ -159,6 +195,67 @@ public class Clippy {
         timer.start();
     }
 
+    /**
+     * Tell the classifier about all content we can handle.
+     */
+    private void registerHandlers() {
+        classifier.register(new ContentClassifier.Registration("plantuml", ContentClassifier.delimited("@startuml", "@enduml")) {
+            @Override
+            protected ContentClassifier.Handler create() {
+                return new ContentClassifier.Handler() {
+                    @Override
+                    public void handle(String text) {
+                        handlePlantUML(text);
+                    }
+                };
+            }
+        });
+        classifier.register(new ContentClassifier.Registration("svg", ContentClassifier.delimited("<svg ", "</svg>")) {
+            @Override
+            protected ContentClassifier.Handler create() {
+                return new ContentClassifier.Handler() {
+                    @Override
+                    public void handle(String text) {
+                        handleSVG(text);
+                    }
+                };
+            }
+        });
+        classifier.register(new ContentClassifier.Registration("dot", ContentClassifier.dot()) {
+            @Override
+            protected ContentClassifier.Handler create() {
+                return new ContentClassifier.Handler() {
+                    @Override
+                    public void handle(String text) {
+                        handleDOT(text);
+                    }
+                };
+            }
+        });
+        classifier.register(new ContentClassifier.Registration("mermaid", ContentClassifier.mermaid()) {
+            @Override
+            protected ContentClassifier.Handler create() {
+                return new ContentClassifier.Handler() {
+                    @Override
+                    public void handle(String text) {
+                        handleMermaid(text);
+                    }
+                };
+            }
+        });
+        classifier.register(new ContentClassifier.Registration("json", ContentClassifier.json()) {
+            @Override
+            protected ContentClassifier.Handler create() {
+                return new ContentClassifier.Handler() {
+                    @Override
+                    public void handle(String text) {
+                        handleJSON(text);
+                    }
+                };
+            }
+        });
+    }
+
     public void copyResourceToItem(String name) {
         try (InputStream is = Clippy.class.getClassLoader().getResourceAsStream(name)) {
             Files.copy(is, new File(generateUniqueFilename(".txt")).toPath());
@@ -344,33 +441,29 @@ public class Clippy {
         }
     }
 
-    private boolean startsAndEndsWith(String text, String start, String end) {
-        if (!text.startsWith(start)) {
-            return false;
-        }
-
-        int endIndex = text.lastIndexOf(end);
-        if (endIndex == -1) {
-            return false;
-        }
-
-        String trailingText = text.substring(endIndex + end.length());
-        return trailingText.trim().isEmpty();
-    }
-
     /**
-     * Handles DOT content detected on the clipboard.
+     * Save diagram source in the current group, keeping one backup.
+     * <p>
+     * If the file already holds exactly this text nothing is written, so a
+     * "Redo" does not replace the backup with an identical copy.</p>
      *
-     * @param currentText The detected DOT content.
+     * @param filename Name without extension.
+     * @param ext Extension, including the dot.
+     * @param currentText The source.
+     * @return The source file.
      */
-    private void handleDOT(String currentText) {
-        String filename = JOptionPane.showInputDialog(gui, "Filename (without extension):", "PlantUML", JOptionPane.QUESTION_MESSAGE);
-        filename = filename.trim();
-        String fullFilename = filename + ".dot";
-        File outputFile = new File(workDir.get(), fullFilename);
+    private File saveSource(String filename, String ext, String currentText) {
+        File outputFile = new File(workDir.get(), filename + ext);
 
         // Handle backups
         if (outputFile.exists()) {
+            try {
+                if (currentText.equals(Files.readString(outputFile.toPath()))) {
+                    return outputFile; // Unchanged
+                }
+            } catch (IOException ex) {
+                // not readable as text, replace it
+            }
             File backupFile = new File(workDir.get(), filename + ".bak");
             backupFile.delete(); // Delete existing backup
             outputFile.renameTo(backupFile); // Rename current file to backup
@@ -382,54 +475,111 @@ public class Clippy {
         } catch (IOException ex) {
             Logger.getLogger(Clippy.class.getName()).log(Level.SEVERE, null, ex);
         }
+        return outputFile;
+    }
 
-        // Run Graphviz
-        try {
-            ProcessBuilder pb = new ProcessBuilder("dot", "-Tpng", "-o", filename + ".png", outputFile.getAbsolutePath());
-            pb.directory(workDir.get());
-            Process process = pb.start();
-            process.waitFor();
-
-            File pngOutputFile = new File(workDir.get(), filename + ".png");
+    /**
+     * Handles DOT content detected on the clipboard.
+     *
+     * @param currentText The detected DOT content.
+     */
+    private void handleDOT(String currentText) {
+        String filename = JOptionPane.showInputDialog(gui, "Filename (without extension):", "DOT", JOptionPane.QUESTION_MESSAGE);
+        if (filename == null || filename.trim().isEmpty()) {
+            return;
+        }
+        filename = filename.trim();
+        File outputFile = saveSource(filename, ".dot", currentText);
+        File pngOutputFile = new File(workDir.get(), filename + ".png");
+        String key = renderCache.key("dot", RenderCache.toolVersion("dot", "-V"), "-Tpng", currentText);
+        if (renderCache.copyTo(key, pngOutputFile)) {
             displayImage(pngOutputFile);
+            return;
+        }
 
-        } catch (Exception e) {
-            Logger.getLogger(Clippy.class.getName()).log(Level.SEVERE, null, e);
+        // Run Graphviz
+        if (!showRendered(dotPool.render(currentText), pngOutputFile, key)) {
+            Logger.getLogger(Clippy.class.getName()).log(Level.SEVERE, "Graphviz failed on {0}", outputFile);
         }
     }
 
     /**
      * Handles SVG content detected on the clipboard.
      *
-     * @param currentText The detected DOT content.
+     * @param currentText The detected SVG content.
      */
     private void handleSVG(String currentText) {
         String filename = JOptionPane.showInputDialog(gui, "Filename (without extension):", "SVG", JOptionPane.QUESTION_MESSAGE);
+        if (filename == null || filename.trim().isEmpty()) {
+            return;
+        }
         filename = filename.trim();
-        File svgFile = new File(workDir.get(), filename + ".svg");
+        File svgFile = saveSource(filename, ".svg", currentText);
         File pngFile = new File(workDir.get(), filename + ".png");
 
-        // Handle backups
-        if (svgFile.exists()) {
-            File backupFile = new File(workDir.get(), filename + ".bak");
-            backupFile.delete(); // Delete existing backup
-            svgFile.renameTo(backupFile); // Rename current file to backup
+        // Render with Batik if we can, this also allows sharp zooming
+        String version = SvgRenderer.version();
+        if (null != version) {
+            SvgRenderer svg = new SvgRenderer(currentText);
+            double scale = SvgRenderer.displayScale();
+            String key = renderCache.key("batik", version, "scale=" + scale, currentText);
+            if (renderCache.copyTo(key, pngFile)) {
+                new ImageViewer(pngFile, svg, scale).getScalePanFrame();
+                return;
+            }
+            BufferedImage image = svg.render(scale);
+            if (null != image) {
+                try {
+                    ImageIO.write(image, "png", pngFile);
+                    renderCache.put(key, pngFile);
+                } catch (IOException ex) {
+                    Logger.getLogger(Clippy.class.getName()).log(Level.SEVERE, null, ex);
+                }
+                new ImageViewer(image).setScalableSource(svg, scale).getScalePanFrame();
+                return;
+            }
         }
 
-        // Save the current text to the new file
-        try (FileWriter writer = new FileWriter(svgFile)) {
-            writer.write(currentText);
-        } catch (IOException ex) {
-            Logger.getLogger(Clippy.class.getName()).log(Level.SEVERE, null, ex);
+        String key = renderCache.key("convert", RenderCache.toolVersion("convert", "-version"), "", currentText);
+        if (renderCache.copyTo(key, pngFile)) {
+            displayImage(pngFile);
+            return;
         }
 
         // Run ImageMagick
+        if (!showRendered(convertPool.render(currentText), pngFile, key)) {
+            Logger.getLogger(Clippy.class.getName()).log(Level.SEVERE, "ImageMagick failed on {0}", svgFile);
+        }
+    }
+
+    /**
+     * Handles Mermaid content detected on the clipboard, this needs the
+     * Mermaid CLI (mmdc).
+     *
+     * @param currentText The detected Mermaid content.
+     */
+    private void handleMermaid(String currentText) {
+        String filename = JOptionPane.showInputDialog(gui, "Filename (without extension):", "Mermaid", JOptionPane.QUESTION_MESSAGE);
+        if (filename == null || filename.trim().isEmpty()) {
+            return;
+        }
+        filename = filename.trim();
+        File mmdFile = saveSource(filename, ".mmd", currentText);
+        File pngFile = new File(workDir.get(), filename + ".png");
+        String key = renderCache.key("mmdc", RenderCache.toolVersion("mmdc", "--version"), "png", currentText);
+        if (renderCache.copyTo(key, pngFile)) {
+            displayImage(pngFile);
+            return;
+        }
+
+        // Run the Mermaid CLI
         try {
-            ProcessBuilder pb = new ProcessBuilder("convert", svgFile.getAbsolutePath(), pngFile.getAbsolutePath());
-            pb.inheritIO();
+            ProcessBuilder pb = new ProcessBuilder("mmdc", "-i", mmdFile.getAbsolutePath(), "-o", pngFile.getAbsolutePath());
             pb.directory(workDir.get());
             Process process = pb.start();
-            process.waitFor();
+            if (0 == process.waitFor()) {
+                renderCache.put(key, pngFile);
+            }
 
             displayImage(pngFile);
 
@@ -438,6 +588,52 @@ public class Clippy {
         }
     }
 
+    /**
+     * Handles JSON content detected on the clipboard like other text, but
+     * saved as a JSON item.
+     *
+     * @param currentText The detected JSON content.
+     */
+    private void handleJSON(String currentText) {
+        handleText(currentText, ".json");
+    }
+
+    /**
+     * Save text as an item and run the $@command@$ parts in it, their output
+     * goes on the clipboard.
+     *
+     * @param currentText The text.
+     * @param extension Extension of the item.
+     */
+    private void handleText(String currentText, String extension) {
+        File outputFile = new File(generateUniqueFilename(extension));
+        // Save the current text to the new file
+        try (FileWriter writer = new FileWriter(outputFile)) {
+            writer.write(currentText);
+        } catch (IOException ex) {
+            Logger.getLogger(Clippy.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        StringBuilder cat = null;
+        while (currentText.contains("$@")) {
+            int cmd = currentText.indexOf("$@");
+            if (cmd >= 0) {
+                int eoc = currentText.indexOf("@$", cmd);
+                if (eoc > cmd + 2) {
+                    if (null == cat) {
+                        cat = new StringBuilder();
+                    } else {
+                        cat.append(OUTPUT_SEPARATOR);
+                    }
+                    cat.append(handleCommand(currentText.substring(cmd + 2, eoc)));
+                    currentText = new StringBuilder(currentText).delete(cmd, eoc + 2).toString();
+                }
+            }
+        }
+        if (null != cat) {
+            placeOnClipboard(cat.toString());
+        }
+    }
+
     public void handleClipboard() {
         Transferable contents = clipboard.getContents(null);
         if (contents != null) {
@@ -463,8 +659,18 @@ public class Clippy {
                     // Assuming a variable lastImageHash to store the last detected image hash
                     if (currentHash != lastImageHash) {
                         lastImageHash = currentHash;
-                        File imageFile = new File(generateUniqueFilename(".png"));
-                        ImageIO.write(currentImage, "png", imageFile);
+                        String name = generateUniqueFilename(".png");
+                        // fast format now, PNG later, neither on this thread
+                        ImageStore.save(currentImage, new File(name.substring(0, name.length() - 4)))
+                                .whenComplete(new BiConsumer<File, Throwable>() {
+                                    @Override
+                                    public void accept(File saved, Throwable failure) {
+                                        if (null != failure) {
+                                            Logger.getLogger(Clippy.class.getName()).log(Level.SEVERE,
+                                                    "Cannot save clipboard image " + name, failure);
+                                        }
+                                    }
+                                });
                     }
                 } catch (Exception ex) {
                     // no handling possible, can only ignore
@@ -481,39 +687,11 @@ public class Clippy {
 
     public void doClipboard(String currentText) {
         lastClipboardText.set(currentText);
-        if (startsAndEndsWith(currentText, "@startuml", "@enduml")) { // Check for plantUML content
-            handlePlantUML(lastClipboardText.get());
-        } else if (startsAndEndsWith(currentText, "<svg ", "</svg>")) {// check for SVG content
-            handleSVG(lastClipboardText.get());
-        } else if (startsAndEndsWith(currentText, "digraph", "}")) {// check for GraphViz content
-            handleDOT(lastClipboardText.get());
+        ContentClassifier.Match match = classifier.classify(currentText);
+        if (null != match) {
+            match.registration.getHandler().handle(currentText);
         } else {
-            File outputFile = new File(generateUniqueFilename(".txt"));
-            // Save the current text to the new file
-            try (FileWriter writer = new FileWriter(outputFile)) {
-                writer.write(currentText);
-            } catch (IOException ex) {
-                Logger.getLogger(Clippy.class.getName()).log(Level.SEVERE, null, ex);
-            }
-            StringBuilder cat = null;
-            while (currentText.contains("$@")) {
-                int cmd = currentText.indexOf("$@");
-                if (cmd >= 0) {
-                    int eoc = currentText.indexOf("@$", cmd);
-                    if (eoc > cmd + 2) {
-                        if (null == cat) {
-                            cat = new StringBuilder();
-                        } else {
-                            cat.append(OUTPUT_SEPARATOR);
-                        }
-                        cat.append(handleCommand(currentText.substring(cmd + 2, eoc)));
-                        currentText = new StringBuilder(currentText).delete(cmd, eoc + 2).toString();
-                    }
-                }
-            }
-            if (null != cat) {
-                placeOnClipboard(cat.toString());
-            }
+            handleText(currentText, ".txt");
         }
         gui.refreshGroupTab(workDir.get());
     }
@@ -525,40 +703,83 @@ public class Clippy {
      */
     private void handlePlantUML(String currentText) {
         String filename = JOptionPane.showInputDialog(gui, "Filename (without extension):", "PlantUML", JOptionPane.QUESTION_MESSAGE);
-        filename = filename.trim();
         // If "Cancel" is pressed or no filename is provided
         if (filename == null || filename.trim().isEmpty()) {
             return;
         }
-        String fullFilename = filename + ".txt";
-        File outputFile = new File(workDir.get(), fullFilename);
+        filename = filename.trim();
+        File outputFile = saveSource(filename, ".txt", currentText);
+        File pngOutputFile = new File(workDir.get(), filename + ".png");
+        // the key names the renderer that makes the image
+        String version = PlantUmlRenderer.version();
+        if (null != version) {
+            String key = renderCache.key("plantuml-embedded", version, "-tpng", currentText);
+            if (renderCache.copyTo(key, pngOutputFile)) {
+                displayImage(pngOutputFile);
+                return;
+            }
+            // Try the embedded PlantUML first, this saves starting a JVM
+            if (showRendered(PlantUmlRenderer.renderPng(currentText), pngOutputFile, key)) {
+                return;
+            }
+        }
+        String key = renderCache.key("plantuml", RenderCache.toolVersion("plantuml", "-version"), "-tpng", currentText);
+        if (renderCache.copyTo(key, pngOutputFile)) {
+            displayImage(pngOutputFile);
+            return;
+        }
 
-        // Handle backups
-        if (outputFile.exists()) {
-            File backupFile = new File(workDir.get(), filename + ".bak");
-            backupFile.delete(); // Delete existing backup
-            outputFile.renameTo(backupFile); // Rename current file to backup
+        // Run PlantUML, only the first diagram is shown
+        boolean more = currentText.indexOf("@startuml", currentText.indexOf("@startuml") + 1) >= 0;
+        if (!showRendered(getPlantUmlPool().render(currentText, more), pngOutputFile, key)) {
+            Logger.getLogger(Clippy.class.getName()).log(Level.SEVERE, "PlantUML failed on {0}", outputFile);
         }
+    }
 
-        // Save the current text to the new file
-        try (FileWriter writer = new FileWriter(outputFile)) {
-            writer.write(currentText);
+    /**
+     * The external PlantUML, only started if the embedded one is missing.
+     *
+     * @return The pool.
+     */
+    private synchronized RendererPool getPlantUmlPool() {
+        if (null == plantUmlPool) {
+            plantUmlPool = RendererPool.piped(PIPE_DELIMITER, 100, TimeUnit.MINUTES.toMillis(30),
+                    "plantuml", "-pipe", "-tpng", "-pipedelimitor", PIPE_DELIMITER)
+                    .setWarmUpSource("@startuml\nAlice -> Bob : warm-up\n@enduml\n").warmUp();
+        }
+        return plantUmlPool;
+    }
+
+    /**
+     * Save, cache and display a freshly rendered image.
+     *
+     * @param png The PNG, may be null if rendering failed.
+     * @param pngFile Where to save it.
+     * @param key The render cache key.
+     * @return false if there was nothing to show.
+     */
+    private boolean showRendered(byte[] png, File pngFile, String key) {
+        if (null == png) {
+            return false;
+        }
+        BufferedImage image;
+        try {
+            image = ImageIO.read(new ByteArrayInputStream(png));
         } catch (IOException ex) {
             Logger.getLogger(Clippy.class.getName()).log(Level.SEVERE, null, ex);
+            return false;
+        }
+        if (null == image) {
+            return false;
         }
-
-        // Run PlantUML with PNG output
         try {
-            ProcessBuilder pb = new ProcessBuilder("plantuml", "-tpng", outputFile.getAbsolutePath());
-            pb.directory(workDir.get());
-            Process process = pb.start();
-            process.waitFor();
-
-            File pngOutputFile = new File(workDir.get(), filename.trim() + ".png");
-            displayImage(pngOutputFile);
-        } catch (Exception e) {
-            Logger.getLogger(Clippy.class.getName()).log(Level.SEVERE, null, e);
+            Files.write(pngFile.toPath(), png);
+        } catch (IOException ex) {
+            Logger.getLogger(Clippy.class.getName()).log(Level.SEVERE, null, ex);
         }
+        renderCache.put(key, png);
+        displayImage(image);
+        return true;
     }
 
     /**
@@ -570,6 +791,15 @@ public class Clippy {
         new ImageViewer(imageFile).getScalePanFrame();
     }
 
+    /**
+     * Displays an image in a JFrame.
+     *
+     * @param image The image to display.
+     */
+    private void displayImage(Image image) {
+        new ImageViewer(image).getScalePanFrame();
+    }
+
     /**
      * Resizes a given image to the specified width and height.
      *
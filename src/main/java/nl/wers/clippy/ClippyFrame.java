@@ -44,6 +44,9 @@ import javax.swing.JToolBar;
 import javax.swing.SwingConstants;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
+import nl.infcomtec.simpleimage.ImageCache;
+import nl.infcomtec.simpleimage.ImageObject;
+import nl.infcomtec.simpleimage.ImageStore;
 import nl.infcomtec.simpleimage.ImageViewer;
 
 /**
@@ -153,8 +156,11 @@ public class ClippyFrame extends JFrame {
             System.exit(0);
         }
         for (File g : groups) {
-            if (g.isDirectory()) {
+            // hidden directories, like the render cache, are not groups
+            if (g.isDirectory() && !g.getName().startsWith(".")) {
                 addGroupTab(g);
+                // images saved just before the last exit may still be in the fast format
+                ImageStore.transcodePending(g);
             }
         }
         refreshGroupTab(Clippy.workDir.get());
@@ -346,6 +352,10 @@ public class ClippyFrame extends JFrame {
             });
             ButtonGroup bGrp = new ButtonGroup();
             for (File file : files) {
+                // hidden files are work in progress, a superseded fast image is about to go
+                if (file.getName().startsWith(".") || ImageStore.isSuperseded(file)) {
+                    continue;
+                }
                 if (groupPanel.getComponentCount() > 0) {
                     groupPanel.add(new JSeparator(SwingConstants.HORIZONTAL));
                 }
@@ -370,12 +380,13 @@ public class ClippyFrame extends JFrame {
                                         break;
                                     }
                                 }
-                                selectedFile = new File(bt.getName());
+                                // the fast file may have been transcoded meanwhile
+                                selectedFile = ImageStore.resolve(new File(bt.getName()));
                                 if (!selectedFile.exists()) {
                                     selectedFile = null;
                                     itemToCB.setEnabled(false);
                                 } else {
-                                    if (selectedFile.getName().endsWith(".png")) {
+                                    if (ImageStore.isImageFile(selectedFile)) {
                                         itemToCB.setEnabled(false);
                                         tabbedPane.add(VIEW, new ImageViewer(selectedFile).addShadowView().getScalePanPanelTools());
                                         tabbedPane.setSelectedIndex(tabbedPane.getComponentCount() - 1);
@@ -400,13 +411,19 @@ public class ClippyFrame extends JFrame {
                 bGrp.add(bt);
                 line.add(bt);
                 // Handling PNG files
-                if (file.getName().toLowerCase().endsWith(".png")) {
-                    ImageIcon icon = new ImageIcon(file.getAbsolutePath()); // Load the image
-                    JLabel imgLabel = new JLabel(bestFileToTimeLabel(file),
-                            new ImageIcon(scaleMax(icon.getImage(), TNAIL_SIZE, TNAIL_SIZE, Color.darkGray)),
-                            SwingConstants.HORIZONTAL);
-                    imgLabel.setName(file.getName()); // Set file name as the component name for later retrieval
-                    line.add(imgLabel);
+                if (ImageStore.isImageFile(file)) {
+                    try {
+                        // decoded once, also for the View tab and image frames
+                        ImageObject img = ImageCache.get(file);
+                        double s = Math.min((double) TNAIL_SIZE / img.getWidth(), (double) TNAIL_SIZE / img.getHeight());
+                        JLabel imgLabel = new JLabel(bestFileToTimeLabel(file),
+                                new ImageIcon(scaleMax(img.getMipmapFor(s), TNAIL_SIZE, TNAIL_SIZE, Color.darkGray)),
+                                SwingConstants.HORIZONTAL);
+                        imgLabel.setName(file.getName()); // Set file name as the component name for later retrieval
+                        line.add(imgLabel);
+                    } catch (IOException ex) {
+                        Logger.getLogger(ClippyFrame.class.getName()).log(Level.SEVERE, null, ex);
+                    }
                 } else { // Handling text files
                     try {
                         String content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
@@ -443,12 +460,12 @@ public class ClippyFrame extends JFrame {
     public BufferedImage scaleMax(Image image, int nw, int nh, Color backGround) {
         int rw = nw;
         int rh = nh;
-        double wr = (double) getWidth() / (double) rw;
-        double hr = (double) getHeight() / (double) rh;
+        double wr = (double) image.getWidth(null) / (double) rw;
+        double hr = (double) image.getHeight(null) / (double) rh;
         if (wr > hr) {
-            rh = (int) Math.round(getHeight() / wr);
+            rh = (int) Math.round(image.getHeight(null) / wr);
         } else {
-            rw = (int) Math.round(getWidth() / hr);
+            rw = (int) Math.round(image.getWidth(null) / hr);
         }
         ImageIcon ii = new ImageIcon(image.getScaledInstance(rw, rh, Image.SCALE_FAST));
 
@@ -35,6 +35,7 @@ public class Config {
         DEFAULT_PROPERTIES.put(SECTIONS.GUI.name() + ".y", "100");
         DEFAULT_PROPERTIES.put(SECTIONS.GUI.name() + ".width", "800");
         DEFAULT_PROPERTIES.put(SECTIONS.GUI.name() + ".height", "600");
+        DEFAULT_PROPERTIES.put(SECTIONS.PREFS.name() + ".renderCacheMB", "256");
         // Add other defaults as needed
     }
 
@@ -128,6 +129,13 @@ public class Config {
         return true;
     }
 
+    /**
+     * @return The maximum size of the render cache in bytes.
+     */
+    public long getRenderCacheBudget() {
+        return Long.parseLong(getProperty(SECTIONS.PREFS, "renderCacheMB", "256")) * 1024 * 1024;
+    }
+
     public int getGuiX() {
         return Integer.parseInt(properties.getProperty(SECTIONS.GUI.name() + ".x"));
     }
@@ -0,0 +1,257 @@
+package nl.wers.clippy;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Registry of content types that Clippy knows how to handle.
+ * <p>
+ * Clipboard text can be huge. To decide what it is, only a bounded window at
+ * the start and at the end of the text is looked at, once. Every registered
+ * probe scores these windows, the best score above the threshold wins.
+ * </p><p>
+ * Handlers are created on first use, so a handler that needs, for instance, a
+ * big library only loads it when such content actually shows up.
+ * </p>
+ *
+ * @author Walter Stroebel
+ */
+public class ContentClassifier {
+
+    /**
+     * Number of characters inspected at the start and at the end.
+     */
+    public static final int WINDOW = 4096;
+    /**
+     * Minimum confidence to accept a match.
+     */
+    public static final double THRESHOLD = 0.5;
+    /**
+     * The header is one line, only white space may come between it and the
+     * brace, so a Mermaid decision node further down is not a DOT graph.
+     */
+    private static final Pattern DOT = Pattern.compile("^(strict\\s+)?(di)?graph\\b[^{\\n]*\\s*\\{",
+            Pattern.CASE_INSENSITIVE);
+    private static final String FLOWCHART = "^(graph|flowchart)\\s+(TB|TD|BT|RL|LR)\\b";
+    private static final Pattern MERMAID_FLOWCHART = Pattern.compile(FLOWCHART);
+    private static final Pattern MERMAID = Pattern.compile(FLOWCHART
+            + "|^(sequenceDiagram|classDiagram|classDiagram-v2|stateDiagram|stateDiagram-v2|erDiagram|gantt|pie|journey|gitGraph|mindmap|timeline|quadrantChart)\\b");
+
+    /**
+     * Scores the start and end of a text.
+     */
+    public interface Probe {
+
+        /**
+         * @param head The first characters of the text, at most WINDOW.
+         * @param tail The last characters of the text, at most WINDOW. For
+         * short texts this overlaps with head.
+         * @return Confidence between 0 and 1 that this is our type of content.
+         */
+        double confidence(String head, String tail);
+    }
+
+    /**
+     * Does something useful with the content.
+     */
+    public interface Handler {
+
+        /**
+         * @param text The complete text.
+         */
+        void handle(String text);
+    }
+
+    /**
+     * A content type with its probe and the means to create its handler.
+     */
+    public static abstract class Registration {
+
+        public final String type;
+        public final Probe probe;
+        private Handler handler;
+
+        public Registration(String type, Probe probe) {
+            this.type = type;
+            this.probe = probe;
+        }
+
+        /**
+         * Called once, on the first match.
+         *
+         * @return The handler.
+         */
+        protected abstract Handler create();
+
+        /**
+         * @return The handler, created if needed.
+         */
+        public synchronized Handler getHandler() {
+            if (null == handler) {
+                handler = create();
+            }
+            return handler;
+        }
+    }
+
+    /**
+     * Result of a classification.
+     */
+    public static class Match {
+
+        public final Registration registration;
+        public final double confidence;
+
+        public Match(Registration registration, double confidence) {
+            this.registration = registration;
+            this.confidence = confidence;
+        }
+
+        /**
+         * @return The content type.
+         */
+        public String getType() {
+            return registration.type;
+        }
+    }
+
+    private final List<Registration> registrations = new LinkedList<>();
+
+    /**
+     * Add a content type, the order only matters for equal scores.
+     *
+     * @param reg The registration.
+     */
+    public synchronized void register(Registration reg) {
+        registrations.add(reg);
+    }
+
+    /**
+     * Find the best handler for the text.
+     *
+     * @param text The text.
+     * @return The best match or null if nothing scores above THRESHOLD.
+     */
+    public synchronized Match classify(String text) {
+        int len = text.length();
+        String head = text.substring(0, Math.min(len, WINDOW));
+        String tail = text.substring(Math.max(0, len - WINDOW));
+        Match best = null;
+        for (Registration reg : registrations) {
+            double c = reg.probe.confidence(head, tail);
+            if (c >= THRESHOLD && (null == best || c > best.confidence)) {
+                best = new Match(reg, c);
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Same as String.trim() but only at the start.
+     */
+    private static String trimStart(String s) {
+        int i = 0;
+        while (i < s.length() && s.charAt(i) <= ' ') {
+            i++;
+        }
+        return s.substring(i);
+    }
+
+    /**
+     * Same as String.trim() but only at the end.
+     */
+    private static String trimEnd(String s) {
+        int i = s.length();
+        while (i > 0 && s.charAt(i - 1) <= ' ') {
+            i--;
+        }
+        return s.substring(0, i);
+    }
+
+    /**
+     * Content that starts and ends with a fixed marker.
+     *
+     * @param start Text the content should start with.
+     * @param end Text the content should end with, trailing white space is
+     * ignored.
+     * @return 1 for an exact start, 0.9 if preceded by white space, 0.3 if
+     * only the start matches, else 0.
+     */
+    public static Probe delimited(final String start, final String end) {
+        return new Probe() {
+            @Override
+            public double confidence(String head, String tail) {
+                double c;
+                if (head.startsWith(start)) {
+                    c = 1.0;
+                } else if (trimStart(head).startsWith(start)) {
+                    c = 0.9;
+                } else {
+                    return 0;
+                }
+                return trimEnd(tail).endsWith(end) ? c : 0.3;
+            }
+        };
+    }
+
+    /**
+     * GraphViz content, "graph", "digraph" and both with "strict".
+     *
+     * @return The probe.
+     */
+    public static Probe dot() {
+        return new Probe() {
+            @Override
+            public double confidence(String head, String tail) {
+                String h = trimStart(head);
+                if (!DOT.matcher(h).find() || MERMAID_FLOWCHART.matcher(h).find()) {
+                    return 0;
+                }
+                return trimEnd(tail).endsWith("}") ? 1.0 : 0.3;
+            }
+        };
+    }
+
+    /**
+     * Mermaid content, recognized by the diagram type on the first line.
+     *
+     * @return The probe.
+     */
+    public static Probe mermaid() {
+        return new Probe() {
+            @Override
+            public double confidence(String head, String tail) {
+                return MERMAID.matcher(trimStart(head)).find() ? 0.8 : 0;
+            }
+        };
+    }
+
+    /**
+     * JSON content, an object or an array. This does not parse the content.
+     *
+     * @return The probe.
+     */
+    public static Probe json() {
+        return new Probe() {
+            @Override
+            public double confidence(String head, String tail) {
+                String h = trimStart(head);
+                String t = trimEnd(tail);
+                if (h.isEmpty() || t.isEmpty()) {
+                    return 0;
+                }
+                char first = h.charAt(0);
+                char last = t.charAt(t.length() - 1);
+                if ((first == '{' && last == '}') || (first == '[' && last == ']')) {
+                    // a JSON value continues with a quote, a bracket or a value
+                    String rest = trimStart(h.substring(1));
+                    if (rest.isEmpty() || "\"{[]}-0123456789tfn".indexOf(rest.charAt(0)) >= 0) {
+                        return 0.6;
+                    }
+                }
+                return 0;
+            }
+        };
+    }
+}
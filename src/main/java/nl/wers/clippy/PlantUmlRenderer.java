@@ -0,0 +1,83 @@
+package nl.wers.clippy;
+
+import java.io.ByteArrayOutputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.sourceforge.plantuml.FileFormat;
+import net.sourceforge.plantuml.FileFormatOption;
+import net.sourceforge.plantuml.SourceStringReader;
+import net.sourceforge.plantuml.version.Version;
+
+/**
+ * In-process PlantUML rendering.
+ * <p>
+ * Running the plantuml command boots a fresh JVM for every diagram, which
+ * takes a few seconds before any layout is done. This class uses the PlantUML
+ * library inside our own JVM instead; after a warm-up render all classes,
+ * fonts and caches are loaded and following diagrams render almost instantly.
+ * </p><p>
+ * If the library is missing at runtime or fails, the methods return null and
+ * the caller is expected to fall back to the external command.
+ * </p>
+ *
+ * @author Walter Stroebel
+ */
+public class PlantUmlRenderer {
+
+    private static final String WARM_UP = "@startuml\nAlice -> Bob : warm-up\n@enduml\n";
+    private static boolean broken = false;
+
+    /**
+     * Render a tiny diagram in the background so the first real diagram does
+     * not pay for class loading.
+     */
+    public static void warmUp() {
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                renderPng(WARM_UP);
+            }
+        }, "PlantUML warm-up");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.start();
+    }
+
+    /**
+     * @return The version of the embedded library or null if not available.
+     */
+    public static String version() {
+        try {
+            return Version.versionString();
+        } catch (LinkageError err) {
+            return null;
+        }
+    }
+
+    /**
+     * Render PlantUML source to PNG in memory.
+     *
+     * @param source The PlantUML text, including @startuml and @enduml.
+     * @return The PNG bytes or null if in-process rendering is not possible.
+     */
+    public static synchronized byte[] renderPng(String source) {
+        if (broken) {
+            return null;
+        }
+        try {
+            SourceStringReader reader = new SourceStringReader(source);
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            if (null == reader.outputImage(bos, new FileFormatOption(FileFormat.PNG))) {
+                return null;
+            }
+            return bos.toByteArray();
+        } catch (LinkageError err) {
+            // library not on the class path, do not try again
+            broken = true;
+            Logger.getLogger(PlantUmlRenderer.class.getName()).log(Level.WARNING, "PlantUML library not available, using external command", err);
+        } catch (Exception ex) {
+            Logger.getLogger(PlantUmlRenderer.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,266 @@
+package nl.wers.clippy;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cache of rendered diagrams.
+ * <p>
+ * Rendering PlantUML, DOT or SVG is slow compared to copying a file. The cache
+ * stores the resulting PNG under a hash of the source text, the renderer, the
+ * renderer version and the options used. Pressing "Redo" or copying the same
+ * diagram again, even in another group, is then served from the cache.
+ * </p><p>
+ * The cache lives in a hidden directory next to the groups. Each hit touches
+ * the file, the least recently used files are removed when the total size
+ * exceeds the budget.
+ * </p><p>
+ * Versions of external tools are found in the background. Until a tool has
+ * answered, key() returns null and renders with it are neither looked up nor
+ * stored.
+ * </p>
+ *
+ * @author Walter Stroebel
+ */
+public class RenderCache {
+
+    /**
+     * Name of the cache directory, the leading dot keeps it out of the groups.
+     */
+    public static final String CACHE_DIR = ".cache";
+    private static final Map<String, CompletableFuture<String>> TOOL_VERSIONS = new ConcurrentHashMap<>();
+    /**
+     * Runs the version commands, one at a time and never on the caller.
+     */
+    private static final ExecutorService VERSION_RUNNER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Tool versions");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * Find the version of an external tool without waiting for it. The tool
+     * is run once per session in the background, the result is remembered.
+     *
+     * @param cmd The command and arguments to print the version, for instance
+     * "dot", "-V".
+     * @return The first line of output, "unknown" if the tool did not say, or
+     * null if the tool has not answered yet.
+     */
+    public static String toolVersion(final String... cmd) {
+        final String key = String.join(" ", cmd);
+        CompletableFuture<String> f = TOOL_VERSIONS.get(key);
+        if (null == f) {
+            CompletableFuture<String> created = new CompletableFuture<>();
+            f = TOOL_VERSIONS.putIfAbsent(key, created);
+            if (null == f) {
+                f = created;
+                VERSION_RUNNER.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        created.complete(runVersion(key, cmd));
+                    }
+                });
+            }
+        }
+        return f.getNow(null);
+    }
+
+    private static String runVersion(String key, String... cmd) {
+        String ret = "unknown";
+        try {
+            ProcessBuilder pb = new ProcessBuilder(cmd);
+            pb.redirectErrorStream(true);
+            Process process = pb.start();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                String line = reader.readLine();
+                if (null != line) {
+                    ret = line.trim();
+                }
+            }
+            process.waitFor();
+        } catch (Exception ex) {
+            Logger.getLogger(RenderCache.class.getName()).log(Level.WARNING, "Cannot determine version of {0}", key);
+        }
+        return ret;
+    }
+
+    private final File dir;
+    private final long budget;
+
+    /**
+     * Create or open the cache.
+     *
+     * @param dir Directory to keep the cached images in.
+     * @param budget Maximum total size in bytes.
+     */
+    public RenderCache(File dir, long budget) {
+        this.dir = dir;
+        this.budget = budget;
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+    }
+
+    /**
+     * Compute the cache key.
+     *
+     * @param renderer Name of the renderer, like "dot".
+     * @param version Version of the renderer, null if not known yet.
+     * @param options Anything else that changes the output.
+     * @param source The diagram source.
+     * @return A hexadecimal SHA-256 hash, or null if version is null.
+     */
+    public String key(String renderer, String version, String options, String source) {
+        if (null == version) {
+            return null;
+        }
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(renderer.getBytes(StandardCharsets.UTF_8));
+            md.update((byte) 0);
+            md.update(version.getBytes(StandardCharsets.UTF_8));
+            md.update((byte) 0);
+            md.update(options.getBytes(StandardCharsets.UTF_8));
+            md.update((byte) 0);
+            md.update(source.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : md.digest()) {
+                sb.append(String.format("%02x", b & 0xFF));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            // every JRE must have SHA-256
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Look up a rendered image.
+     *
+     * @param key As returned by key(), may be null.
+     * @return The cached PNG file or null if not cached.
+     */
+    public File get(String key) {
+        if (null == key) {
+            return null;
+        }
+        File f = new File(dir, key + ".png");
+        if (f.exists()) {
+            f.setLastModified(System.currentTimeMillis());
+            return f;
+        }
+        return null;
+    }
+
+    /**
+     * Copy a cached image to its place in a group.
+     *
+     * @param key As returned by key().
+     * @param target The PNG file in the group.
+     * @return true if the image was cached and copied.
+     */
+    public boolean copyTo(String key, File target) {
+        File f = get(key);
+        if (null == f) {
+            return false;
+        }
+        try {
+            // an equal file is left alone so its time stamp, and with it
+            // ImageCache, stays valid
+            if (!target.exists() || Files.mismatch(f.toPath(), target.toPath()) >= 0) {
+                Files.copy(f.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            return true;
+        } catch (IOException ex) {
+            Logger.getLogger(RenderCache.class.getName()).log(Level.SEVERE, null, ex);
+            return false;
+        }
+    }
+
+    /**
+     * Store a rendered image.
+     *
+     * @param key As returned by key(), nothing is stored if null.
+     * @param png The freshly rendered PNG file.
+     */
+    public void put(String key, File png) {
+        if (null == key || !png.exists()) {
+            return;
+        }
+        try {
+            Files.copy(png.toPath(), new File(dir, key + ".png").toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            Logger.getLogger(RenderCache.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        evict();
+    }
+
+    /**
+     * Store a rendered image.
+     *
+     * @param key As returned by key(), nothing is stored if null.
+     * @param png The freshly rendered PNG bytes.
+     */
+    public void put(String key, byte[] png) {
+        if (null == key) {
+            return;
+        }
+        try {
+            Files.write(new File(dir, key + ".png").toPath(), png);
+        } catch (IOException ex) {
+            Logger.getLogger(RenderCache.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        evict();
+    }
+
+    /**
+     * Remove the least recently used images until we are within budget.
+     */
+    private synchronized void evict() {
+        File[] files = dir.listFiles();
+        if (null == files) {
+            return;
+        }
+        long total = 0;
+        for (File f : files) {
+            total += f.length();
+        }
+        if (total <= budget) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File t, File t1) {
+                return Long.compare(t.lastModified(), t1.lastModified());
+            }
+        });
+        for (File f : files) {
+            if (total <= budget) {
+                break;
+            }
+            total -= f.length();
+            f.delete();
+        }
+    }
+}
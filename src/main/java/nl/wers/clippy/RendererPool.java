@@ -0,0 +1,322 @@
+package nl.wers.clippy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pool of external renderer processes that are started before they are
+ * needed.
+ * <p>
+ * Starting a process, certainly one that boots a JVM, is often slower than
+ * the actual rendering. Workers are started in the background and wait for
+ * their source on stdin, the PNG is read from stdout, so no temporary files
+ * are involved.
+ * </p>
+ * <ul>
+ * <li><b>Piped</b> workers, like "plantuml -pipe", keep running and render one
+ * diagram after another. Each PNG is followed by a delimiter line. They are
+ * recycled after a number of uses or some time.</li>
+ * <li><b>One-shot</b> workers, like "dot -Tpng", render one source until end
+ * of input. A spare is started as soon as one is used.</li>
+ * </ul>
+ * <p>
+ * A worker that died, or does not answer within the time-out, is destroyed.
+ * If the command cannot be started at all the pool gives up and returns null,
+ * so the caller can fall back to something else.
+ * </p>
+ *
+ * @author Walter Stroebel
+ */
+public class RendererPool {
+
+    private static final byte[] PNG_SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+    private static final ThreadFactory DAEMONS = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "RendererPool");
+            t.setDaemon(true);
+            return t;
+        }
+    };
+    private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(DAEMONS);
+    private static final ExecutorService SPARES = Executors.newSingleThreadExecutor(DAEMONS);
+
+    /**
+     * Pool of workers that keep running between diagrams.
+     *
+     * @param delimiter The line the command writes after each PNG.
+     * @param maxUses Recycle a worker after this many diagrams.
+     * @param maxAgeMillis Recycle a worker after this time.
+     * @param command The command and its arguments.
+     * @return The pool.
+     */
+    public static RendererPool piped(String delimiter, int maxUses, long maxAgeMillis, String... command) {
+        return new RendererPool(delimiter, 1, maxUses, maxAgeMillis, command);
+    }
+
+    /**
+     * Pool of workers that render a single source each.
+     *
+     * @param spares Number of workers to keep waiting.
+     * @param command The command and its arguments.
+     * @return The pool.
+     */
+    public static RendererPool oneShot(int spares, String... command) {
+        return new RendererPool(null, spares, 1, Long.MAX_VALUE, command);
+    }
+
+    private final String delimiter;
+    private final int spares;
+    private final int maxUses;
+    private final long maxAgeMillis;
+    private final String[] command;
+    private final LinkedBlockingDeque<Worker> idle = new LinkedBlockingDeque<>();
+    private long timeoutMillis = 30000;
+    private String warmUpSource = null;
+    private volatile boolean broken = false;
+    private volatile boolean warming = false;
+
+    private RendererPool(String delimiter, int spares, int maxUses, long maxAgeMillis, String... command) {
+        this.delimiter = delimiter;
+        this.spares = spares;
+        this.maxUses = maxUses;
+        this.maxAgeMillis = maxAgeMillis;
+        this.command = command;
+    }
+
+    /**
+     * @param millis Maximum time for one diagram before the worker is killed.
+     * @return For chaining.
+     */
+    public RendererPool setTimeout(long millis) {
+        timeoutMillis = millis;
+        return this;
+    }
+
+    /**
+     * Piped workers that load code on first use, like a JVM, can render a
+     * small source before they are put to work.
+     *
+     * @param source Source to render on start-up.
+     * @return For chaining.
+     */
+    public RendererPool setWarmUpSource(String source) {
+        warmUpSource = source;
+        return this;
+    }
+
+    /**
+     * Start the spare workers in the background.
+     *
+     * @return For chaining.
+     */
+    public RendererPool warmUp() {
+        SPARES.submit(new Runnable() {
+            @Override
+            public void run() {
+                while (!broken && idle.size() < spares) {
+                    warming = true;
+                    Worker w = start();
+                    if (null != w && null != delimiter && null != warmUpSource) {
+                        try {
+                            w.render(warmUpSource);
+                        } catch (IOException ex) {
+                            w.destroy();
+                            w = null;
+                        }
+                    }
+                    if (null != w) {
+                        idle.offerLast(w);
+                    }
+                }
+                warming = false;
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Render a source.
+     *
+     * @param source The diagram source.
+     * @param recycle Do not reuse the worker afterwards, for instance because
+     * the source holds more than one diagram.
+     * @return The PNG or null if rendering failed.
+     */
+    public byte[] render(String source, boolean recycle) {
+        Worker w = take();
+        if (null == w) {
+            return null;
+        }
+        byte[] ret = null;
+        try {
+            ret = w.render(source);
+        } catch (IOException ex) {
+            Logger.getLogger(RendererPool.class.getName()).log(Level.SEVERE, "Rendering with " + command[0] + " failed", ex);
+        }
+        if (null != ret && !recycle && w.isHealthy()) {
+            idle.offerFirst(w);
+        } else {
+            w.destroy();
+        }
+        warmUp();
+        return ret;
+    }
+
+    /**
+     * Render a source.
+     *
+     * @param source The diagram source.
+     * @return The PNG or null if rendering failed.
+     */
+    public byte[] render(String source) {
+        return render(source, false);
+    }
+
+    /**
+     * Get a healthy idle worker, wait for the spare that is being started or
+     * start one.
+     */
+    private Worker take() {
+        Worker w;
+        while (null != (w = idle.pollFirst())) {
+            if (w.isHealthy()) {
+                return w;
+            }
+            w.destroy();
+        }
+        if (warming) {
+            try {
+                w = idle.pollFirst(timeoutMillis, TimeUnit.MILLISECONDS);
+                if (null != w && w.isHealthy()) {
+                    return w;
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            if (null != w) {
+                w.destroy();
+            }
+        }
+        return start();
+    }
+
+    private Worker start() {
+        if (broken) {
+            return null;
+        }
+        try {
+            return new Worker();
+        } catch (IOException ex) {
+            broken = true;
+            Logger.getLogger(RendererPool.class.getName()).log(Level.WARNING, "Cannot start {0}: {1}", new Object[]{command[0], ex.getMessage()});
+            return null;
+        }
+    }
+
+    /**
+     * One external process.
+     */
+    private class Worker {
+
+        private final Process process;
+        private final long started = System.currentTimeMillis();
+        private int uses = 0;
+
+        Worker() throws IOException {
+            ProcessBuilder pb = new ProcessBuilder(command);
+            pb.directory(Clippy.workDir.get());
+            pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+            process = pb.start();
+        }
+
+        boolean isHealthy() {
+            return process.isAlive() && uses < maxUses && System.currentTimeMillis() - started < maxAgeMillis;
+        }
+
+        void destroy() {
+            process.destroy();
+        }
+
+        byte[] render(String source) throws IOException {
+            uses++;
+            ScheduledFuture<?> dog = WATCHDOG.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    Logger.getLogger(RendererPool.class.getName()).log(Level.WARNING, "{0} timed out", command[0]);
+                    process.destroyForcibly();
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+            try {
+                OutputStream out = process.getOutputStream();
+                out.write(source.getBytes(StandardCharsets.UTF_8));
+                if (!source.endsWith("\n")) {
+                    out.write('\n');
+                }
+                if (null == delimiter) {
+                    out.close();
+                    byte[] ret = process.getInputStream().readAllBytes();
+                    process.waitFor();
+                    return 0 == process.exitValue() && ret.length > 0 ? ret : null;
+                }
+                out.flush();
+                byte[] ret = readPng(process.getInputStream());
+                skipLine(process.getInputStream());
+                return ret;
+            } catch (InterruptedException ex) {
+                throw new IOException(ex);
+            } finally {
+                dog.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Read exactly one PNG, chunk by chunk, up to and including IEND.
+     */
+    private static byte[] readPng(InputStream is) throws IOException {
+        DataInputStream in = new DataInputStream(is);
+        ByteArrayOutputStream ret = new ByteArrayOutputStream();
+        byte[] sig = new byte[PNG_SIGNATURE.length];
+        in.readFully(sig);
+        if (!Arrays.equals(sig, PNG_SIGNATURE)) {
+            throw new IOException("Not a PNG");
+        }
+        ret.write(sig);
+        byte[] type = new byte[4];
+        do {
+            int len = in.readInt();
+            in.readFully(type);
+            byte[] data = new byte[len + 4]; // including CRC
+            in.readFully(data);
+            ret.write(len >>> 24);
+            ret.write(len >>> 16);
+            ret.write(len >>> 8);
+            ret.write(len);
+            ret.write(type);
+            ret.write(data);
+        } while (!"IEND".equals(new String(type, StandardCharsets.ISO_8859_1)));
+        return ret.toByteArray();
+    }
+
+    private static void skipLine(InputStream in) throws IOException {
+        int c;
+        while ((c = in.read()) >= 0 && c != '\n') {
+            // skip
+        }
+    }
+}
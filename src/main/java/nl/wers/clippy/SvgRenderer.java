@@ -0,0 +1,145 @@
+package nl.wers.clippy;
+
+import java.awt.GraphicsEnvironment;
+import java.awt.Toolkit;
+import java.awt.image.BufferedImage;
+import java.io.StringReader;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import nl.infcomtec.simpleimage.ScalableSource;
+import org.apache.batik.Version;
+import org.apache.batik.transcoder.SVGAbstractTranscoder;
+import org.apache.batik.transcoder.TranscoderInput;
+import org.apache.batik.transcoder.TranscoderOutput;
+import org.apache.batik.transcoder.image.ImageTranscoder;
+
+/**
+ * In-process SVG rendering with Apache Batik.
+ * <p>
+ * Replaces running ImageMagick for every SVG. The SVG is rendered at the
+ * resolution of the display and, as a ScalableSource, can be rendered again at
+ * a higher scale when the user zooms in.
+ * </p>
+ *
+ * @author Walter Stroebel
+ */
+public class SvgRenderer implements ScalableSource {
+
+    /**
+     * Batik writes its result through writeImage, we just keep it.
+     */
+    private static class BufferedImageTranscoder extends ImageTranscoder {
+
+        private BufferedImage image;
+
+        @Override
+        public BufferedImage createImage(int width, int height) {
+            return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        }
+
+        @Override
+        public void writeImage(BufferedImage img, TranscoderOutput output) {
+            image = img;
+        }
+    }
+
+    /**
+     * @return The version of the embedded library or null if not available.
+     */
+    public static String version() {
+        try {
+            return Version.getVersion();
+        } catch (LinkageError err) {
+            return null;
+        }
+    }
+
+    /**
+     * The scale of the default screen, 2.0 for instance on high resolution
+     * displays.
+     *
+     * @return The scale of the display, 1.0 if unknown.
+     */
+    public static double displayScale() {
+        if (GraphicsEnvironment.isHeadless()) {
+            return 1.0;
+        }
+        double ret = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice()
+                .getDefaultConfiguration().getDefaultTransform().getScaleX();
+        return ret > 0 ? ret : 1.0;
+    }
+
+    private final String source;
+    private int naturalWidth = 0;
+
+    /**
+     * @param source The SVG text.
+     */
+    public SvgRenderer(String source) {
+        this.source = addNamespaces(source);
+    }
+
+    /**
+     * Batik insists on the SVG namespace, which LLM's tend to leave out.
+     *
+     * @param svg The SVG text.
+     * @return The SVG text with namespace declarations on the root element.
+     */
+    private static String addNamespaces(String svg) {
+        int start = svg.indexOf("<svg");
+        int end = start < 0 ? -1 : svg.indexOf('>', start);
+        if (end < 0) {
+            return svg;
+        }
+        String root = svg.substring(start, end);
+        StringBuilder ns = new StringBuilder();
+        if (!root.contains("xmlns=")) {
+            ns.append(" xmlns=\"http://www.w3.org/2000/svg\"");
+        }
+        if (!root.contains("xmlns:xlink=") && svg.contains("xlink:")) {
+            ns.append(" xmlns:xlink=\"http://www.w3.org/1999/xlink\"");
+        }
+        if (ns.length() == 0) {
+            return svg;
+        }
+        return new StringBuilder(svg).insert(start + 4, ns).toString();
+    }
+
+    /**
+     * Render at the given scale.
+     *
+     * @param scale Relative to the size declared by the SVG.
+     * @return The image or null if the SVG could not be rendered.
+     */
+    @Override
+    public synchronized BufferedImage render(double scale) {
+        try {
+            BufferedImageTranscoder t = new BufferedImageTranscoder();
+            if (!GraphicsEnvironment.isHeadless()) {
+                // physical units (mm, in, pt) at the resolution of the screen
+                t.addTranscodingHint(SVGAbstractTranscoder.KEY_PIXEL_UNIT_TO_MILLIMETER,
+                        (float) (25.4 / Toolkit.getDefaultToolkit().getScreenResolution()));
+            }
+            if (naturalWidth > 0) {
+                t.addTranscodingHint(SVGAbstractTranscoder.KEY_WIDTH, (float) (naturalWidth * scale));
+            }
+            t.transcode(new TranscoderInput(new StringReader(source)), new TranscoderOutput());
+            if (null == t.image) {
+                return null;
+            }
+            if (naturalWidth == 0) {
+                naturalWidth = t.image.getWidth();
+                if (Math.abs(scale - 1.0) > 1e-3) {
+                    // we now know the natural size, render again at the requested scale
+                    return render(scale);
+                }
+            }
+            return t.image;
+        } catch (LinkageError err) {
+            Logger.getLogger(SvgRenderer.class.getName()).log(Level.WARNING, "Batik not available, using external command", err);
+        } catch (Exception ex) {
+            Logger.getLogger(SvgRenderer.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ */
+package nl.infcomtec.simpleimage;
+
+import java.awt.Point;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Write, append and map, including what an interrupted append leaves behind.
+ *
+ * @author walter
+ */
+class PointSetFileTest {
+
+    @TempDir
+    File dir;
+
+    private static List<LabelledPoint> points(Random rnd, int n) {
+        List<LabelledPoint> ret = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            // a few repeated labels, an empty one and some non-ASCII
+            String label = rnd.nextInt(5) == 0 ? "" : "pé" + rnd.nextInt(7);
+            ret.add(new LabelledPoint(new Point(rnd.nextInt(10000) - 5000, rnd.nextInt(10000)), label));
+        }
+        return ret;
+    }
+
+    private static void assertPoints(List<LabelledPoint> expected, PointSetFile.PointSet actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            LabelledPoint e = expected.get(i);
+            assertEquals(e.x, actual.getX(i), "x of " + i);
+            assertEquals(e.y, actual.getY(i), "y of " + i);
+            assertEquals(e.label, actual.getLabel(i), "label of " + i);
+        }
+    }
+
+    /**
+     * Put the point count in the header back, as if the append stopped
+     * before the header was updated.
+     */
+    private static void setCount(File f, long total) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.seek(8);
+            raf.writeLong(total);
+        }
+    }
+
+    @Test
+    void writeAppendMap() throws IOException {
+        Random rnd = new Random(3);
+        File f = new File(dir, "points.cpt");
+        List<LabelledPoint> all = points(rnd, 100);
+        PointSetFile.write(f, all);
+        assertPoints(all, PointSetFile.map(f));
+        List<LabelledPoint> more = points(rnd, 37);
+        PointSetFile.append(f, more);
+        all.addAll(more);
+        assertPoints(all, PointSetFile.map(f));
+        // an empty append changes nothing
+        PointSetFile.append(f, new ArrayList<LabelledPoint>());
+        assertPoints(all, PointSetFile.map(f));
+    }
+
+    @Test
+    void appendCreatesFile() throws IOException {
+        File f = new File(dir, "new.cpt");
+        List<LabelledPoint> all = points(new Random(4), 10);
+        PointSetFile.append(f, all);
+        assertPoints(all, PointSetFile.map(f));
+    }
+
+    @Test
+    void interruptedAppend() throws IOException {
+        Random rnd = new Random(5);
+        File f = new File(dir, "points.cpt");
+        List<LabelledPoint> all = points(rnd, 50);
+        PointSetFile.write(f, all);
+        // a whole block written but not counted
+        PointSetFile.append(f, points(rnd, 20));
+        setCount(f, all.size());
+        assertPoints(all, PointSetFile.map(f));
+        // the next append replaces it
+        List<LabelledPoint> more = points(rnd, 30);
+        PointSetFile.append(f, more);
+        all.addAll(more);
+        assertPoints(all, PointSetFile.map(f));
+        // a block cut off halfway
+        long before = f.length();
+        PointSetFile.append(f, points(rnd, 40));
+        setCount(f, all.size());
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.setLength(before + (raf.length() - before) / 2);
+        }
+        assertPoints(all, PointSetFile.map(f));
+        more = points(rnd, 5);
+        PointSetFile.append(f, more);
+        all.addAll(more);
+        assertPoints(all, PointSetFile.map(f));
+    }
+
+    @Test
+    void corruptFiles() throws IOException {
+        final File f = new File(dir, "points.cpt");
+        PointSetFile.write(f, points(new Random(6), 25));
+        Executable map = new Executable() {
+            @Override
+            public void execute() throws Throwable {
+                PointSetFile.map(f);
+            }
+        };
+        // more points counted than there are
+        setCount(f, 26);
+        assertThrows(IOException.class, map);
+        setCount(f, -1);
+        assertThrows(IOException.class, map);
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.writeInt(0);
+        }
+        assertThrows(IOException.class, map);
+        assertThrows(IOException.class, new Executable() {
+            @Override
+            public void execute() throws Throwable {
+                new PointSetFile.Appender(f).close();
+            }
+        });
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ */
+package nl.infcomtec.simpleimage;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Round trips through the QOI encoder and decoder.
+ *
+ * @author walter
+ */
+class QoiTest {
+
+    @TempDir
+    File dir;
+
+    private static BufferedImage image(int w, int h, int[] pixels) {
+        BufferedImage ret = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        ret.setRGB(0, 0, w, h, pixels, 0, w);
+        return ret;
+    }
+
+    private static byte[] encode(BufferedImage image) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        Qoi.write(image, bos);
+        return bos.toByteArray();
+    }
+
+    private static int[] pixels(BufferedImage image) {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        int[] ret = new int[w * h];
+        MappedImage.getPixels(image, 0, 0, w, h, ret);
+        return ret;
+    }
+
+    private static void roundTrip(int w, int h, int[] expected) throws IOException {
+        BufferedImage back = Qoi.read(new ByteArrayInputStream(encode(image(w, h, expected))));
+        assertEquals(w, back.getWidth());
+        assertEquals(h, back.getHeight());
+        assertArrayEquals(expected, pixels(back));
+    }
+
+    @Test
+    void randomPixels() throws IOException {
+        Random rnd = new Random(8);
+        for (int run = 0; run < 20; run++) {
+            int w = 1 + rnd.nextInt(100);
+            int h = 1 + rnd.nextInt(40);
+            int[] px = new int[w * h];
+            for (int i = 0; i < px.length; i++) {
+                px[i] = rnd.nextInt();
+            }
+            roundTrip(w, h, px);
+        }
+    }
+
+    /**
+     * Small steps and repeats, so the diff, luma, index and run codes are used,
+     * including differences that wrap around.
+     */
+    @Test
+    void smallChanges() throws IOException {
+        Random rnd = new Random(9);
+        int w = 97;
+        int h = 31;
+        int[] px = new int[w * h];
+        int[] seen = new int[16];
+        int p = 0xFF808080;
+        for (int i = 0; i < px.length; i++) {
+            switch (rnd.nextInt(6)) {
+                case 0:
+                    break;
+                case 1:
+                    p = seen[rnd.nextInt(seen.length)];
+                    break;
+                case 2:
+                    p = p & 0xFF000000 | (p + 0x00010101 * (rnd.nextInt(4) - 2)) & 0xFFFFFF;
+                    break;
+                case 3:
+                    int dg = rnd.nextInt(64) - 32;
+                    int r = (p >> 16) + dg + rnd.nextInt(16) - 8;
+                    int g = (p >> 8) + dg;
+                    int b = p + dg + rnd.nextInt(16) - 8;
+                    p = p & 0xFF000000 | (r & 0xFF) << 16 | (g & 0xFF) << 8 | (b & 0xFF);
+                    break;
+                case 4:
+                    p = p ^ 0x00FF00FF;
+                    break;
+                default:
+                    p = (p & 0xFFFFFF) | rnd.nextInt(256) << 24;
+                    break;
+            }
+            seen[i % seen.length] = p;
+            px[i] = p;
+        }
+        roundTrip(w, h, px);
+    }
+
+    @Test
+    void edgeCases() throws IOException {
+        roundTrip(1, 1, new int[]{0x12345678});
+        // the start value, and the empty index entry
+        roundTrip(1, 1, new int[]{0xFF000000});
+        roundTrip(3, 1, new int[]{0, 0, 0});
+        int[] px = new int[200 * 3];
+        roundTrip(200, 3, px);
+        // runs across rows, exactly 62 and longer
+        Arrays.fill(px, 0xFFFFFFFF);
+        roundTrip(200, 3, px);
+        Arrays.fill(px, 0, 62, 0x80FF0000);
+        Arrays.fill(px, 62, 62 + 63, 0x80FF0001);
+        Arrays.fill(px, 62 + 63, 62 + 63 + 124, 0x7FFF0001);
+        roundTrip(200, 3, px);
+        // same colour, only alpha changes
+        for (int i = 0; i < px.length; i++) {
+            px[i] = (i & 0xFF) << 24 | 0x336699;
+        }
+        roundTrip(200, 3, px);
+    }
+
+    @Test
+    void otherTypes() throws IOException {
+        Random rnd = new Random(10);
+        int w = 33;
+        int h = 21;
+        BufferedImage rgb = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        int[] px = new int[w * h];
+        for (int i = 0; i < px.length; i++) {
+            px[i] = 0xFF000000 | rnd.nextInt();
+        }
+        rgb.setRGB(0, 0, w, h, px, 0, w);
+        assertArrayEquals(px, pixels(Qoi.read(new ByteArrayInputStream(encode(rgb)))));
+        BufferedImage off = MappedImage.allocate(w, h, true);
+        for (int i = 0; i < px.length; i++) {
+            px[i] = rnd.nextInt();
+        }
+        MappedImage.setPixels(off, 0, 0, w, h, px);
+        assertArrayEquals(px, pixels(Qoi.read(new ByteArrayInputStream(encode(off)))));
+    }
+
+    @Test
+    void file() throws IOException {
+        int[] px = new int[64 * 64];
+        for (int i = 0; i < px.length; i++) {
+            px[i] = i * 0x01030507;
+        }
+        File f = new File(dir, "test.qoi");
+        Qoi.write(image(64, 64, px), f);
+        assertTrue(Qoi.isQoi(f));
+        assertArrayEquals(px, pixels(Qoi.read(f)));
+    }
+
+    @Test
+    void badInput() throws IOException {
+        int[] px = new int[10 * 10];
+        for (int i = 0; i < px.length; i++) {
+            px[i] = i * 0x01234567;
+        }
+        byte[] data = encode(image(10, 10, px));
+        final byte[] truncated = Arrays.copyOf(data, data.length / 2);
+        assertThrows(IOException.class, new Executable() {
+            @Override
+            public void execute() throws Throwable {
+                Qoi.read(new ByteArrayInputStream(truncated));
+            }
+        });
+        final byte[] notQoi = Arrays.copyOf(data, data.length);
+        notQoi[0] = 'P';
+        assertThrows(IOException.class, new Executable() {
+            @Override
+            public void execute() throws Throwable {
+                Qoi.read(new ByteArrayInputStream(notQoi));
+            }
+        });
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ */
+package nl.infcomtec.simpleimage;
+
+import java.awt.Rectangle;
+import java.util.Random;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the span operations pixel by pixel against a BitShape.
+ *
+ * @author walter
+ */
+class SpanShapeTest {
+
+    private static final int W = 64;
+    private static final int H = 48;
+
+    /**
+     * Random spans and single pixel edits, the same on both shapes.
+     */
+    private static void fill(Random rnd, SpanShape s, BitShape b) {
+        int y0 = rnd.nextInt(H / 2);
+        int y1 = y0 + rnd.nextInt(H - y0);
+        for (int y = y0; y < y1; y++) {
+            for (int k = rnd.nextInt(4); k > 0; k--) {
+                int x0 = rnd.nextInt(W);
+                int x1 = x0 + rnd.nextInt(W - x0 + 1);
+                s.setSpan(x0, x1, y);
+                b.setSpan(x0, x1, y);
+            }
+        }
+        for (int k = rnd.nextInt(60); k > 0; k--) {
+            int x = rnd.nextInt(W);
+            int y = rnd.nextInt(H);
+            if (rnd.nextBoolean()) {
+                s.set(x, y);
+                b.set(x, y);
+            } else {
+                s.reset(x, y);
+                b.reset(x, y);
+            }
+        }
+    }
+
+    private static void assertSame(BitShape expected, SpanShape actual, String what) {
+        long area = 0;
+        for (int y = 0; y < H; y++) {
+            for (int x = 0; x < W; x++) {
+                assertEquals(expected.contains(x, y), actual.contains(x, y), what + " at " + x + "," + y);
+                if (expected.contains(x, y)) {
+                    area++;
+                }
+            }
+        }
+        assertEquals(area, actual.area(), what + " area");
+        assertEquals(area == 0, actual.isEmpty(), what + " empty");
+    }
+
+    @Test
+    void booleanOperations() {
+        Random rnd = new Random(1);
+        for (int run = 0; run < 200; run++) {
+            SpanShape sa = new SpanShape();
+            BitShape ba = new BitShape(W);
+            fill(rnd, sa, ba);
+            SpanShape sb = new SpanShape();
+            BitShape bb = new BitShape(W);
+            fill(rnd, sb, bb);
+            assertSame(ba, sa, "a");
+            BitShape or = new BitShape(W);
+            BitShape and = new BitShape(W);
+            BitShape andNot = new BitShape(W);
+            for (int y = 0; y < H; y++) {
+                for (int x = 0; x < W; x++) {
+                    boolean a = ba.contains(x, y);
+                    boolean b = bb.contains(x, y);
+                    if (a || b) {
+                        or.set(x, y);
+                    }
+                    if (a && b) {
+                        and.set(x, y);
+                    }
+                    if (a && !b) {
+                        andNot.set(x, y);
+                    }
+                }
+            }
+            // with another SpanShape and with a BitShape as the argument
+            assertSame(or, sa.union(sb), "union");
+            assertSame(or, sa.union(bb), "union bits");
+            assertSame(and, sa.intersection(sb), "intersection");
+            assertSame(and, sa.intersection(bb), "intersection bits");
+            assertSame(andNot, sa.difference(sb), "difference");
+            assertSame(andNot, sa.difference(bb), "difference bits");
+            // the operands stay as they were
+            assertSame(ba, sa, "a after");
+            assertSame(bb, sb, "b after");
+        }
+    }
+
+    @Test
+    void conversions() {
+        Random rnd = new Random(2);
+        SpanShape s = new SpanShape();
+        BitShape b = new BitShape(W);
+        fill(rnd, s, b);
+        assertSame(b, new SpanShape(b), "from bits");
+        assertSame(b, new SpanShape(s.toBitShape(W)), "round trip");
+        BitShape r = new BitShape(W);
+        for (int y = 5; y < 15; y++) {
+            r.setSpan(3, 20, y);
+        }
+        SpanShape rect = new SpanShape(new Rectangle(3, 5, 17, 10));
+        assertSame(r, rect, "rectangle");
+        assertEquals(new Rectangle(3, 5, 17, 10), rect.getBounds());
+    }
+}
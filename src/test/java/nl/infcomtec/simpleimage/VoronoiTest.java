@@ -0,0 +1,89 @@
+/*
+ */
+package nl.infcomtec.simpleimage;
+
+import java.util.Random;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Compares the labelling with a brute force nearest point search.
+ *
+ * @author walter
+ */
+class VoronoiTest {
+
+    private static long dist2(int x, int y, int px, int py) {
+        long dx = x - px;
+        long dy = y - py;
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * Ties may go either way, so check the distance, not the index.
+     */
+    private static void check(int w, int h, int[] xs, int[] ys) {
+        int[] labels = Voronoi.label(w, h, xs, ys, null);
+        assertEquals(w * h, labels.length);
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                long best = Long.MAX_VALUE;
+                for (int i = 0; i < xs.length; i++) {
+                    best = Math.min(best, dist2(x, y, xs[i], ys[i]));
+                }
+                int l = labels[y * w + x];
+                assertTrue(l >= 0 && l < xs.length, "label " + l + " at " + x + "," + y);
+                assertEquals(best, dist2(x, y, xs[l], ys[l]), "pixel " + x + "," + y);
+            }
+        }
+    }
+
+    @Test
+    void randomPoints() {
+        Random rnd = new Random(42);
+        for (int run = 0; run < 20; run++) {
+            int w = 1 + rnd.nextInt(80);
+            int h = 1 + rnd.nextInt(80);
+            int n = 1 + rnd.nextInt(40);
+            int[] xs = new int[n];
+            int[] ys = new int[n];
+            for (int i = 0; i < n; i++) {
+                // also outside the raster
+                xs[i] = rnd.nextInt(w + 20) - 10;
+                ys[i] = rnd.nextInt(h + 20) - 10;
+            }
+            check(w, h, xs, ys);
+        }
+    }
+
+    @Test
+    void sharedColumnsAndDuplicates() {
+        Random rnd = new Random(7);
+        int w = 50;
+        int h = 40;
+        int n = 30;
+        int[] xs = new int[n];
+        int[] ys = new int[n];
+        for (int i = 0; i < n; i++) {
+            xs[i] = 5 * rnd.nextInt(4);
+            ys[i] = rnd.nextInt(h);
+        }
+        xs[1] = xs[0];
+        ys[1] = ys[0];
+        check(w, h, xs, ys);
+    }
+
+    @Test
+    void singlePoint() {
+        check(17, 9, new int[]{3}, new int[]{4});
+    }
+
+    @Test
+    void noPoints() {
+        int[] labels = Voronoi.label(4, 3, new int[0], new int[0], null);
+        for (int l : labels) {
+            assertEquals(-1, l);
+        }
+    }
+}